@@ -0,0 +1,198 @@
+package compiler;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+* BatchRunner Class that runs one compiled program over every record of a columnar batch.  The program is compiled once with an I/O context, and its run method is invoked again for each record, with records split into chunks that are processed in parallel across cores
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class BatchRunner {
+
+    /** Number of records a worker processes before taking the next chunk */
+    public static final int CHUNK_SIZE = 4096;
+
+    private final MethodHandle program;
+
+    /**
+     * Constructor
+     *
+     * @param program: the run method of a program compiled with an I/O context, see ProgramRunner.compile
+     */
+    public BatchRunner(MethodHandle program) {
+        this.program = program;
+    }
+
+    /**
+     * Main method that runs a program over the records of a CSV file, writing each record's output in order
+     *
+     * @param args: the program, the CSV file and an optional output file
+     * @throws Exception if a file can't be read or the program can't be compiled
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("***Usage: java compiler/BatchRunner <input file> <records.csv> [<output file>]***");
+            return;
+        }
+
+        BatchRunner runner = new BatchRunner(ProgramRunner.compile(args[0]));
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line);
+            }
+        }
+        Object[] columns = toColumns(lines);
+
+        long start = System.nanoTime();
+        Result result = runner.run(columns, lines.size());
+        long elapsed = System.nanoTime() - start;
+
+        Writer out = args.length == 3
+            ? Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)
+            : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            for (int row = 0; row < lines.size(); row++) {
+                if (result.getErrors()[row] != null) {
+                    out.write("***Record " + row + " failed: " + result.getErrors()[row] + "***\n");
+                }
+                else {
+                    out.write(result.getOutputs()[row]);
+                }
+            }
+        } finally {
+            out.flush();
+            if (args.length == 3) {
+                out.close();
+            }
+        }
+        System.err.printf("%d records (%d failed) in %.1f ms, %.0f records/s%n", lines.size(), result.getFailures(),
+            elapsed / 1e6, lines.size() / (elapsed / 1e9));
+    }
+
+    /**
+     * Runs the program once per record
+     *
+     * @param columns: the fields of the batch, each an int[] or a String[] with one entry per record
+     * @param rows: the number of records
+     * @return the output and any error of each record
+     */
+    public Result run(Object[] columns, int rows) {
+        String[] outputs = new String[rows];
+        Throwable[] errors = new Throwable[rows];
+        AtomicInteger failures = new AtomicInteger();
+        int chunks = (rows + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            //One context per chunk, reset for each record
+            RecordIOContext io = new RecordIOContext(columns);
+            int end = Math.min(rows, (chunk + 1) * CHUNK_SIZE);
+            for (int row = chunk * CHUNK_SIZE; row < end; row++) {
+                io.select(row);
+                try {
+                    program.invokeExact((IOContext) io);
+                    outputs[row] = io.getOutput();
+                } catch (Throwable e) {
+                    errors[row] = e;
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        return new Result(outputs, errors, failures.get());
+    }
+
+    /**
+     * Splits CSV lines into columns.  A column where every value is an integer becomes an int[], any other column a String[]
+     *
+     * @param lines: the records, with fields separated by commas
+     * @return the columns
+     */
+    public static Object[] toColumns(List<String> lines) {
+        int width = 0;
+        List<String[]> records = new ArrayList<>();
+        for (String line : lines) {
+            String[] fields = line.split(",", -1);
+            records.add(fields);
+            width = Math.max(width, fields.length);
+        }
+
+        Object[] columns = new Object[width];
+        for (int col = 0; col < width; col++) {
+            String[] values = new String[records.size()];
+            boolean allInts = true;
+            for (int row = 0; row < values.length; row++) {
+                String[] fields = records.get(row);
+                values[row] = col < fields.length ? fields[col] : "";
+                allInts = allInts && values[row].trim().matches("-?[0-9]+");
+            }
+            if (allInts) {
+                int[] ints = new int[values.length];
+                for (int row = 0; row < values.length; row++) {
+                    ints[row] = Integer.parseInt(values[row].trim());
+                }
+                columns[col] = ints;
+            }
+            else {
+                columns[col] = values;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * The outputs of a batch run
+     */
+    public static class Result {
+        private final String[] outputs;
+        private final Throwable[] errors;
+        private final int failures;
+
+        Result(String[] outputs, Throwable[] errors, int failures) {
+            this.outputs = outputs;
+            this.errors = errors;
+            this.failures = failures;
+        }
+
+        /**
+         * Gets what was printed for each record, null where the record failed
+         *
+         * @return the outputs by record
+         */
+        public String[] getOutputs() {
+            return outputs;
+        }
+
+        /**
+         * Gets what was thrown for each record, null where the record succeeded
+         *
+         * @return the errors by record
+         */
+        public Throwable[] getErrors() {
+            return errors;
+        }
+
+        /**
+         * Gets the number of failed records
+         *
+         * @return the number of failures
+         */
+        public int getFailures() {
+            return failures;
+        }
+    }
+
+}
@@ -0,0 +1,1104 @@
+package compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import org.objectweb.asm.ClassWriter;
+
+import lexparse.KnightCodeLexer;
+import lexparse.KnightCodeParser;
+
+/**
+* Benchmark Class that contains small timing harnesses for the compiler.  Each mode runs the old and the new code path on the same input so the numbers can be compared directly
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class Benchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    //Step budget of the meter benchmark, below ExecutionBudget.CHUNK so a method can't take all of it at once
+    private static final long STEP_BUDGET = 1000000000L;
+
+    /**
+     * Main method that selects the benchmark to run
+     *
+     * @param args: the benchmark mode followed by its arguments
+     * @throws Exception if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("***Usage: java compiler/Benchmark parse <input file | statement count> [rounds]***");
+            System.out.println("***       java compiler/Benchmark tier <input file>***");
+            System.out.println("***       java compiler/Benchmark batch <input file> [records]***");
+            System.out.println("***       java compiler/Benchmark profile <input file> [rounds]***");
+            System.out.println("***       java compiler/Benchmark startup <input file> [runs] [cds archive]***");
+            System.out.println("***       java compiler/Benchmark jar [programs] [runs]***");
+            System.out.println("***       java compiler/Benchmark codegen <input file | statement count> [rounds]***");
+            System.out.println("***       java compiler/Benchmark dispatch [cases] [iterations] [rounds]***");
+            System.out.println("***       java compiler/Benchmark pgo <input file> [rounds] | pgo [cold checks] [iterations] [rounds]***");
+            System.out.println("***       java compiler/Benchmark loops [input file | padding statements] [rounds]***");
+            System.out.println("***       java compiler/Benchmark meter [input file] [rounds]***");
+            System.out.println("***       java compiler/Benchmark watch [statement count] [edits]***");
+            System.out.println("***       java compiler/Benchmark farm [programs] [max workers]***");
+            return;
+        }
+
+        switch (args[0]) {
+            case "parse":
+                parse(args);
+                break;
+            case "tier":
+                tier(args);
+                break;
+            case "batch":
+                batch(args);
+                break;
+            case "profile":
+                profile(args);
+                break;
+            case "startup":
+                startup(args);
+                break;
+            case "jar":
+                jar(args);
+                break;
+            case "farm":
+                farm(args);
+                break;
+            case "codegen":
+                codegen(args);
+                break;
+            case "dispatch":
+                dispatch(args);
+                break;
+            case "pgo":
+                pgo(args);
+                break;
+            case "loops":
+                loops(args);
+                break;
+            case "meter":
+                meter(args);
+                break;
+            case "watch":
+                watch(args);
+                break;
+            default:
+                System.out.println("***Unknown benchmark '" + args[0] + "'***");
+        }
+    }
+
+    /**
+     * Compares parse throughput of the old front end (copying file read, full LL) against the new one (memory-mapped read, SLL with LL fallback)
+     *
+     * @param args: the command line arguments, with the input file or the size of a generated program
+     * @throws IOException if the input can't be read
+     */
+    private static void parse(String[] args) throws IOException {
+        String inputFile = sourceArgument(args);
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        long bytes = Files.size(Path.of(inputFile));
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parseBaseline(inputFile);
+            kcc.parse(kcc.readSource(inputFile));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            parseBaseline(inputFile);
+        }
+        long baseline = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            kcc.parse(kcc.readSource(inputFile));
+        }
+        long twoStage = System.nanoTime() - start;
+
+        System.out.println("Input: " + inputFile + " (" + bytes + " bytes, " + rounds + " rounds)");
+        report("fromFileName + LL", baseline, rounds, bytes);
+        report("mmap + SLL/LL", twoStage, rounds, bytes);
+    }
+
+    /**
+     * Times one cold run of a program in the tiered interpreter against generating, loading and running its class.  The program must not READ, and its output is discarded
+     *
+     * @param args: the command line arguments, with the input file
+     * @throws Exception if the program can't be compiled or run
+     */
+    private static void tier(String[] args) throws Exception {
+        KnightCodeParser.FileContext tree = kcc.parse(kcc.readSource(args[1]));
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long start = System.nanoTime();
+            Interpreter interpreter = new Interpreter(tree);
+            interpreter.run();
+            long tiered = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CustomVisitor visitor = new CustomVisitor();
+            visitor.setVerbose(false);
+            visitor.setClassName("output/" + tree.ID().getText());
+            visitor.visit(tree);
+            Class<?> type = new ByteClassLoader(Benchmark.class.getClassLoader()).define(visitor.getClassName(), visitor.getBytecode());
+            type.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            long compiled = System.nanoTime() - start;
+
+            console.println("Input: " + args[1]);
+            console.printf("%-20s %10.2f ms (%d loops compiled)%n", "tiered interpreter", tiered / 1e6, interpreter.getCompiledLoops());
+            console.printf("%-20s %10.2f ms%n", "codegen + load", compiled / 1e6);
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Measures batch throughput of a program over random records, with one int or string field for each READ in the source
+     *
+     * @param args: the command line arguments, with the input file and the number of records
+     * @throws Exception if the program can't be compiled
+     */
+    private static void batch(String[] args) throws Exception {
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+        KnightCodeParser.FileContext tree = kcc.parse(kcc.readSource(args[1]));
+        List<Object> columns = new ArrayList<>();
+        Random random = new Random(42);
+        collectReadColumns(tree, tree, columns, random, rows);
+
+        BatchRunner runner = new BatchRunner(ProgramRunner.compile(args[1]));
+        Object[] batch = columns.toArray();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runner.run(batch, Math.min(rows, 100000));
+        }
+
+        long start = System.nanoTime();
+        BatchRunner.Result result = runner.run(batch, rows);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Input: " + args[1] + " (" + columns.size() + " fields, " + rows + " records, " + result.getFailures() + " failed)");
+        System.out.printf("%-20s %10.1f ms %14.0f records/s%n", "batch", elapsed / 1e6, rows / (elapsed / 1e9));
+    }
+
+    /**
+     * Adds a random column for each READ in the tree, in source order
+     *
+     * @param file: the whole program, for looking up variable types
+     * @param tree: the subtree to search
+     * @param columns: the columns found so far
+     * @param random: the source of values
+     * @param rows: the number of records
+     */
+    private static void collectReadColumns(KnightCodeParser.FileContext file, ParseTree tree, List<Object> columns, Random random, int rows) {
+        if (tree instanceof KnightCodeParser.ReadContext) {
+            String name = ((KnightCodeParser.ReadContext) tree).ID().getText();
+            boolean isInt = true;
+            for (KnightCodeParser.VariableContext var : file.declare().variable()) {
+                if (var.identifier().getText().equals(name)) {
+                    isInt = "INTEGER".equals(var.vartype().getText());
+                }
+            }
+            if (isInt) {
+                columns.add(random.ints(rows, 0, 1000).toArray());
+            }
+            else {
+                String[] values = new String[rows];
+                for (int i = 0; i < rows; i++) {
+                    values[i] = "value" + random.nextInt(1000);
+                }
+                columns.add(values);
+            }
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            collectReadColumns(file, tree.getChild(i), columns, random, rows);
+        }
+    }
+
+    /**
+     * Measures the overhead of profiling counters by running the program's main with and without them, alternating so both see the same JIT state.  The program must not READ, and its output is discarded
+     *
+     * @param args: the command line arguments, with the input file and the number of rounds
+     * @throws Exception if the program can't be compiled or run
+     */
+    private static void profile(String[] args) throws Exception {
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        KnightCodeParser.FileContext tree = kcc.parse(kcc.readSource(args[1]));
+        System.setProperty("kc.profile.dir", System.getProperty("java.io.tmpdir"));
+        Method plain = compileMain(tree, false, true);
+        Method profiled = compileMain(tree, true, true);
+
+        long plainTime = 0;
+        long profiledTime = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + rounds; i++) {
+            long plainRun = timeMain(plain);
+            long profiledRun = timeMain(profiled);
+            if (i >= WARMUP_ROUNDS) {
+                plainTime += plainRun;
+                profiledTime += profiledRun;
+            }
+        }
+        System.out.println("Input: " + args[1] + " (" + rounds + " rounds)");
+        System.out.printf("%-20s %10.2f ms/run%n", "plain", plainTime / 1e6 / rounds);
+        System.out.printf("%-20s %10.2f ms/run %+6.1f%%%n", "profiled", profiledTime / 1e6 / rounds, 100.0 * (profiledTime - plainTime) / plainTime);
+    }
+
+    /**
+     * Compiles a program in memory and looks up its main method
+     *
+     * @param tree: the parse tree of the program
+     * @param profiling: whether to add profiling counters
+     * @param switchLowering: whether to compile IF chains to switches
+     * @return the main method
+     * @throws ReflectiveOperationException if main can't be found
+     */
+    private static Method compileMain(KnightCodeParser.FileContext tree, boolean profiling, boolean switchLowering) throws ReflectiveOperationException {
+        return compileMain(tree, visitor -> {
+            visitor.setProfiling(profiling);
+            visitor.setSwitchLowering(switchLowering);
+        });
+    }
+
+    /**
+     * Compiles a program in memory with other code generation options and looks up its main method
+     *
+     * @param tree: the parse tree of the program
+     * @param options: sets the options on the visitor before it runs
+     * @return the main method
+     * @throws ReflectiveOperationException if main can't be found
+     */
+    private static Method compileMain(KnightCodeParser.FileContext tree, Consumer<CustomVisitor> options) throws ReflectiveOperationException {
+        CustomVisitor visitor = new CustomVisitor();
+        visitor.setVerbose(false);
+        options.accept(visitor);
+        visitor.setSourceFile(tree.getStart().getTokenSource().getSourceName());
+        visitor.setClassName("output/" + tree.ID().getText());
+        visitor.visit(tree);
+        Class<?> type = new ByteClassLoader(Benchmark.class.getClassLoader()).define(visitor.getClassName(), visitor.getBytecode());
+        return type.getMethod("main", String[].class);
+    }
+
+    /**
+     * Runs a main method once with its output discarded
+     *
+     * @param main: the main method
+     * @return the time taken in nanoseconds
+     * @throws ReflectiveOperationException if main can't be called
+     */
+    private static long timeMain(Method main) throws ReflectiveOperationException {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long start = System.nanoTime();
+            main.invoke(null, (Object) new String[0]);
+            return System.nanoTime() - start;
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Launches kcc in fresh JVMs on a program and reports the median time to the first byte of output and to exit, with and without a CDS archive of the compiler classes
+     *
+     * @param args: the command line arguments, with the input file, the number of runs and an optional archive made by ant cds-archive
+     * @throws Exception if kcc can't be launched
+     */
+    private static void startup(String[] args) throws Exception {
+        String inputFile = Path.of(args[1]).toAbsolutePath().toString();
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        Path workDir = Files.createTempDirectory("kcstartup");
+        Files.createDirectories(workDir.resolve("output"));
+
+        System.out.println("Input: " + args[1] + " (" + runs + " runs)");
+        startupRuns("default", workDir, inputFile, runs);
+        if (args.length > 3) {
+            //The same options as kcc.sh
+            startupRuns("kcc.sh + cds", workDir, inputFile, runs, "-XX:SharedArchiveFile=" + args[3], "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-Djava.awt.headless=true");
+        }
+    }
+
+    /**
+     * Launches kcc repeatedly with the same JVM options and prints the medians
+     *
+     * @param label: the name of the configuration
+     * @param workDir: the directory to run in, holding the output directory
+     * @param inputFile: the absolute path of the program
+     * @param runs: the number of launches
+     * @param jvmOptions: extra options for the JVM
+     * @throws Exception if kcc can't be launched
+     */
+    private static void startupRuns(String label, Path workDir, String inputFile, int runs, String... jvmOptions) throws Exception {
+        long[] firstByte = new long[runs];
+        long[] exit = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(Arrays.asList(jvmOptions));
+            command.addAll(Arrays.asList("-cp", absoluteClassPath(), "compiler.kcc", inputFile, "output/Startup"));
+
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).directory(workDir.toFile()).redirectErrorStream(true).start();
+            InputStream out = process.getInputStream();
+            out.read();
+            firstByte[i] = System.nanoTime() - start;
+            out.transferTo(OutputStream.nullOutputStream());
+            process.waitFor();
+            exit[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(firstByte);
+        Arrays.sort(exit);
+        System.out.printf("%-20s %10.1f ms to first byte %10.1f ms to exit%n", label, firstByte[runs / 2] / 1e6, exit[runs / 2] / 1e6);
+    }
+
+    /**
+     * Compiles many generated programs, then compares writing them as loose class files against one JAR, and launching a program from the loose files, the JAR and the JAR with its CDS archive
+     *
+     * @param args: the command line arguments, with the number of programs and of launches
+     * @throws Exception if the classes can't be written or a program can't be launched
+     */
+    private static void jar(String[] args) throws Exception {
+        int programs = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        Path workDir = Files.createTempDirectory("kcjar");
+        Path looseDir = workDir.resolve("loose");
+        Path syncedDir = workDir.resolve("synced");
+        Files.createDirectories(looseDir.resolve("output"));
+        Files.createDirectories(syncedDir.resolve("output"));
+
+        List<String> names = new ArrayList<>();
+        List<byte[]> classes = new ArrayList<>();
+        long bytes = 0;
+        for (int i = 0; i < programs; i++) {
+            String source = syntheticProgram(40).replace("PROGRAM Synthetic", "PROGRAM P" + i);
+            CustomVisitor visitor = new CustomVisitor();
+            visitor.setVerbose(false);
+            visitor.setClassName("output/P" + i);
+            visitor.visit(kcc.parse(CharStreams.fromString(source)));
+            names.add(visitor.getClassName());
+            classes.add(visitor.getBytecode());
+            bytes += visitor.getBytecode().length;
+        }
+        System.out.println(programs + " programs, " + bytes + " bytes of classes");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < programs; i++) {
+            try (FileOutputStream out = new FileOutputStream(looseDir.resolve(names.get(i) + ".class").toFile())) {
+                out.write(classes.get(i));
+            }
+        }
+        writeReport("loose files", System.nanoTime() - start, programs, bytes);
+
+        start = System.nanoTime();
+        for (int i = 0; i < programs; i++) {
+            try (FileOutputStream out = new FileOutputStream(syncedDir.resolve(names.get(i) + ".class").toFile())) {
+                out.write(classes.get(i));
+                out.getFD().sync();
+            }
+        }
+        writeReport("loose files + fsync", System.nanoTime() - start, programs, bytes);
+
+        start = System.nanoTime();
+        JarWriter jar = new JarWriter(workDir.resolve("programs.jar"));
+        for (int i = 0; i < programs; i++) {
+            jar.add(names.get(i), classes.get(i));
+        }
+        jar.write();
+        writeReport("jar, one fsync", System.nanoTime() - start, programs, bytes);
+
+        start = System.nanoTime();
+        Path archive = jar.writeArchive();
+        System.out.printf("%-20s %10.1f ms%n", "cds archive", (System.nanoTime() - start) / 1e6);
+
+        String jarPath = workDir.resolve("programs.jar").toString();
+        String program = "output.P" + (programs / 2);
+        launchRuns("loose files", runs, "-cp", looseDir.toString(), program);
+        launchRuns("jar", runs, "-cp", jarPath, program);
+        launchRuns("jar + cds", runs, "-XX:SharedArchiveFile=" + archive, "-Xshare:auto", "-cp", jarPath, program);
+    }
+
+    /**
+     * Compares code generation with ASM computing the stack map frames (COMPUTE_FRAMES, the old way) against the visitor writing them itself (COMPUTE_MAXS), on the same parse tree
+     *
+     * @param args: the command line arguments, with the input file or the size of a generated program, and the number of rounds
+     * @throws IOException if the input can't be read
+     */
+    private static void codegen(String[] args) throws IOException {
+        String inputFile = sourceArgument(args.length > 1 ? args : new String[] {"codegen", "1500"});
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        KnightCodeParser.FileContext tree = kcc.parse(kcc.readSource(inputFile));
+
+        //Both paths share most of their code, so warm up until the JIT has settled on both
+        for (int round = 0; round < rounds; round++) {
+            generate(tree, ClassWriter.COMPUTE_FRAMES);
+            generate(tree, ClassWriter.COMPUTE_MAXS);
+        }
+        long computed = 0;
+        long written = 0;
+        int size = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            generate(tree, ClassWriter.COMPUTE_FRAMES);
+            computed += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            size = generate(tree, ClassWriter.COMPUTE_MAXS);
+            written += System.nanoTime() - start;
+        }
+        System.out.println("Input: " + inputFile + ", class of " + size + " bytes");
+        System.out.printf("%-20s %10.3f ms/class%n", "COMPUTE_FRAMES", computed / 1e6 / rounds);
+        System.out.printf("%-20s %10.3f ms/class%n", "own frames", written / 1e6 / rounds);
+    }
+
+    /**
+     * Generates the class of a parsed program in memory
+     *
+     * @param tree: the parse tree of the program
+     * @param writerFlags: the ClassWriter flags
+     * @return the size of the class
+     */
+    private static int generate(KnightCodeParser.FileContext tree, int writerFlags) {
+        CustomVisitor visitor = new CustomVisitor(writerFlags);
+        visitor.setVerbose(false);
+        visitor.setClassName("output/" + tree.ID().getText());
+        visitor.visit(tree);
+        return visitor.getBytecode().length;
+    }
+
+    /**
+     * Times a dispatch loop, a run of IF tests on one code with a case for every value, compiled as a compare chain and as a switch, once with dense codes and once with sparse ones
+     *
+     * @param args: the command line arguments, with the number of cases, the loop iterations and the rounds
+     * @throws ReflectiveOperationException if the programs can't be run
+     */
+    private static void dispatch(String[] args) throws ReflectiveOperationException {
+        int cases = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        System.out.println(cases + " cases, " + iterations + " iterations (" + rounds + " rounds)");
+        for (int spacing : new int[] {1, 1000}) {
+            KnightCodeParser.FileContext tree = kcc.parse(CharStreams.fromString(dispatchProgram(cases, spacing, iterations)));
+            Method chain = compileMain(tree, false, false);
+            Method lowered = compileMain(tree, false, true);
+
+            long chainTime = 0;
+            long loweredTime = 0;
+            for (int i = 0; i < WARMUP_ROUNDS + rounds; i++) {
+                long chainRun = timeMain(chain);
+                long loweredRun = timeMain(lowered);
+                if (i >= WARMUP_ROUNDS) {
+                    chainTime += chainRun;
+                    loweredTime += loweredRun;
+                }
+            }
+            String keys = spacing == 1 ? "dense" : "sparse";
+            System.out.printf("%-20s %10.2f ms/run%n", keys + " IF chain", chainTime / 1e6 / rounds);
+            System.out.printf("%-20s %10.2f ms/run %6.2fx%n", keys + " switch", loweredTime / 1e6 / rounds, (double) chainTime / loweredTime);
+        }
+    }
+
+    /**
+     * Trains a program in this process and times it compiled plainly and with its branch profile.  Given a file, the file is the program and must not READ.  Otherwise a hot loop full of error checks that never fire is generated, once with a few checks and once with so many that the plain main is over HotSpot's 8000 byte limit for compiling a method
+     *
+     * @param args: the command line arguments, with the input file and the rounds, or the number of checks in the large program, the loop iterations and the rounds
+     * @throws Exception if the programs can't be compiled or run
+     */
+    private static void pgo(String[] args) throws Exception {
+        System.setProperty("kc.profile.dir", System.getProperty("java.io.tmpdir"));
+        if (args.length > 1 && !args[1].matches("[0-9]+")) {
+            int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+            System.out.println("Input: " + args[1] + " (" + rounds + " rounds)");
+            pgoRuns("", kcc.parse(kcc.readSource(args[1])), rounds);
+            return;
+        }
+
+        int largeChecks = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        System.out.println(iterations + " iterations (" + rounds + " rounds)");
+        for (int checks : new int[] {4, largeChecks}) {
+            pgoRuns(checks + " checks ", kcc.parse(CharStreams.fromString(pgoProgram(checks, iterations), "pgo" + checks + ".kc")), rounds);
+        }
+    }
+
+    /**
+     * Runs a program once compiled with branch counters, then alternates runs of it compiled plainly and with the profile collected
+     *
+     * @param label: the start of each report line
+     * @param tree: the parse tree of the program
+     * @param rounds: the number of timed rounds
+     * @throws ReflectiveOperationException if the program can't be run
+     */
+    private static void pgoRuns(String label, KnightCodeParser.FileContext tree, int rounds) throws ReflectiveOperationException {
+        timeMain(compileMain(tree, visitor -> visitor.setPgoTraining(true)));
+        Map<String, long[]> profile = BranchProfile.counts(tree.getStart().getTokenSource().getSourceName());
+
+        Method plain = compileMain(tree, false, true);
+        Method optimized = compileMain(tree, visitor -> visitor.setPgoProfile(profile));
+        long plainTime = 0;
+        long optimizedTime = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + rounds; i++) {
+            long plainRun = timeMain(plain);
+            long optimizedRun = timeMain(optimized);
+            if (i >= WARMUP_ROUNDS) {
+                plainTime += plainRun;
+                optimizedTime += optimizedRun;
+            }
+        }
+        System.out.printf("%-20s %10.2f ms/run%n", label + "plain", plainTime / 1e6 / rounds);
+        System.out.printf("%-20s %10.2f ms/run %6.2fx%n", label + "PGO", optimizedTime / 1e6 / rounds, (double) plainTime / optimizedTime);
+    }
+
+    /**
+     * Times a loop-heavy program with its loops compiled inline in main and outlined into methods of their own.  The first run of each shows the warm-up, from loading the class through the JIT compiling the loops, and the rounds after WARMUP_ROUNDS the steady state.
+     * Without a file, a nested loop is generated after enough straight-line statements to take main over HotSpot's 8000 byte limit for compiling a method.  The program must not READ
+     *
+     * @param args: the command line arguments, with the input file or the number of padding statements, and the rounds
+     * @throws Exception if the program can't be compiled or run
+     */
+    private static void loops(String[] args) throws Exception {
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        KnightCodeParser.FileContext tree;
+        if (args.length > 1 && !args[1].matches("[0-9]+")) {
+            System.out.println("Input: " + args[1] + " (" + rounds + " rounds)");
+            tree = kcc.parse(kcc.readSource(args[1]));
+        }
+        else {
+            int padding = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            System.out.println("Nested loop after " + padding + " statements (" + rounds + " rounds)");
+            tree = kcc.parse(CharStreams.fromString(loopProgram(padding)));
+        }
+
+        Method inline = compileMain(tree, false, true);
+        Method outlined = compileMain(tree, visitor -> visitor.setLoopOutlining(true));
+        long inlineFirst = timeMain(inline);
+        long outlinedFirst = timeMain(outlined);
+        long inlineTime = 0;
+        long outlinedTime = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + rounds; i++) {
+            long inlineRun = timeMain(inline);
+            long outlinedRun = timeMain(outlined);
+            if (i >= WARMUP_ROUNDS) {
+                inlineTime += inlineRun;
+                outlinedTime += outlinedRun;
+            }
+        }
+        System.out.printf("%-20s %10.2f ms first run %10.2f ms/run%n", "loops in main", inlineFirst / 1e6, inlineTime / 1e6 / rounds);
+        System.out.printf("%-20s %10.2f ms first run %10.2f ms/run %6.2fx%n", "outlined loops", outlinedFirst / 1e6, outlinedTime / 1e6 / rounds, (double) inlineTime / outlinedTime);
+    }
+
+    /**
+     * Measures the overhead of execution budget metering by running programs without it and with a step budget, a time budget and both, taking turns so all see the same JIT state.  The budgets are too large to run out.  Without a file, a nested loop and a dispatch loop are generated.  The program must not READ.
+     * First each program is run in every code generation mode with and without the budgets, see checkModes, and the timing only starts if the output is the same
+     *
+     * @param args: the command line arguments, with the optional input file and the rounds
+     * @throws Exception if a program can't be compiled or run
+     */
+    private static void meter(String[] args) throws Exception {
+        boolean file = args.length > 1 && !args[1].matches("[0-9]+");
+        int rounds = args.length > (file ? 2 : 1) ? Integer.parseInt(args[file ? 2 : 1]) : 10;
+        List<String> labels = new ArrayList<>();
+        List<KnightCodeParser.FileContext> trees = new ArrayList<>();
+        if (file) {
+            labels.add(Path.of(args[1]).getFileName().toString());
+            trees.add(kcc.parse(kcc.readSource(args[1])));
+        }
+        else {
+            labels.add("nested loop");
+            trees.add(kcc.parse(CharStreams.fromString(loopProgram(0), "loops.kc")));
+            labels.add("dispatch loop");
+            trees.add(kcc.parse(CharStreams.fromString(dispatchProgram(16, 1, 2000000), "dispatch.kc")));
+        }
+
+        String[] budgets = {"plain", "steps", "time", "steps+time"};
+        long[][] limits = {{0, 0}, {STEP_BUDGET, 0}, {0, 3600000}, {STEP_BUDGET, 3600000}};
+        boolean same = true;
+        for (int t = 0; t < trees.size(); t++) {
+            same &= checkModes(labels.get(t), trees.get(t), budgets, limits);
+        }
+        if (!same) {
+            System.out.println("***Metered output differs, not timed***");
+            return;
+        }
+
+        System.out.println("(" + rounds + " rounds)");
+        for (int t = 0; t < trees.size(); t++) {
+            Method[] mains = new Method[budgets.length];
+            for (int b = 0; b < budgets.length; b++) {
+                long[] limit = limits[b];
+                mains[b] = compileMain(trees.get(t), visitor -> visitor.setExecutionBudget(limit[0], limit[1]));
+            }
+
+            long[] times = new long[budgets.length];
+            for (int i = 0; i < WARMUP_ROUNDS + rounds; i++) {
+                for (int b = 0; b < budgets.length; b++) {
+                    long run = timeMain(mains[b]);
+                    if (i >= WARMUP_ROUNDS) {
+                        times[b] += run;
+                    }
+                }
+            }
+            System.out.printf("%-25s %10.2f ms/run%n", labels.get(t) + " " + budgets[0], times[0] / 1e6 / rounds);
+            for (int b = 1; b < budgets.length; b++) {
+                System.out.printf("%-25s %10.2f ms/run %+6.1f%%%n", labels.get(t) + " " + budgets[b], times[b] / 1e6 / rounds, 100.0 * (times[b] - times[0]) / times[0]);
+            }
+        }
+    }
+
+    /**
+     * Runs a program in each code generation mode kcc has, unmetered and under each budget, and compares the output.  Then it finds the fewest steps each mode runs in, which must be the same for all, as a step is a loop iteration however the loop is compiled.
+     * The modes run through the run method of an I/O context build, so a budget that runs out is thrown to here instead of exiting
+     *
+     * @param label: the name of the program in the report
+     * @param tree: the parse tree of the program
+     * @param budgets: the name of each budget, the first of them no budget
+     * @param limits: the steps and milliseconds of each budget
+     * @return true if every metered run printed what the unmetered one did, and every mode took the same steps
+     * @throws ReflectiveOperationException if a program can't be run
+     */
+    private static boolean checkModes(String label, KnightCodeParser.FileContext tree, String[] budgets, long[][] limits) throws ReflectiveOperationException {
+        System.setProperty("kc.profile.dir", System.getProperty("java.io.tmpdir"));
+        String sourceFile = tree.getStart().getTokenSource().getSourceName();
+        runMetered(tree, visitor -> visitor.setPgoTraining(true));
+        Map<String, long[]> profile = BranchProfile.counts(sourceFile);
+
+        Map<String, Consumer<CustomVisitor>> modes = new LinkedHashMap<>();
+        modes.put("default", visitor -> { });
+        modes.put("-profile", visitor -> visitor.setProfiling(true));
+        modes.put("-no-switch", visitor -> visitor.setSwitchLowering(false));
+        modes.put("-target 8", visitor -> visitor.setTarget(8));
+        modes.put("-pgo-train", visitor -> visitor.setPgoTraining(true));
+        modes.put("-pgo", visitor -> visitor.setPgoProfile(profile));
+        modes.put("-outline-loops", visitor -> visitor.setLoopOutlining(true));
+        modes.put("-pgo -outline-loops", visitor -> {
+            visitor.setPgoProfile(profile);
+            visitor.setLoopOutlining(true);
+        });
+
+        boolean same = true;
+        long steps = -1;
+        for (Map.Entry<String, Consumer<CustomVisitor>> mode : modes.entrySet()) {
+            String expected = runMetered(tree, mode.getValue());
+            StringBuilder differs = new StringBuilder();
+            for (int b = 1; b < budgets.length; b++) {
+                long[] limit = limits[b];
+                if (!expected.equals(runMetered(tree, mode.getValue().andThen(visitor -> visitor.setExecutionBudget(limit[0], limit[1]))))) {
+                    differs.append(' ').append(budgets[b]);
+                }
+            }
+
+            //The fewest steps that still print the same, by bisection.  A budget of 0 is no limit, so a program without loops shows 1
+            long low = 1;
+            long high = STEP_BUDGET;
+            while (differs.length() == 0 && low < high) {
+                long middle = (low + high) / 2;
+                long budget = middle;
+                if (expected.equals(runMetered(tree, mode.getValue().andThen(visitor -> visitor.setExecutionBudget(budget, 0))))) {
+                    high = middle;
+                }
+                else {
+                    low = middle + 1;
+                }
+            }
+            if (differs.length() == 0 && steps >= 0 && low != steps) {
+                differs.append(" a budget of ").append(low).append(" steps, not ").append(steps);
+            }
+            steps = steps < 0 ? low : steps;
+            same &= differs.length() == 0;
+            System.out.printf("%-25s %-20s %s%n", label, mode.getKey(), differs.length() == 0 ? "same output metered, " + low + " steps" : "***differs with" + differs + "***");
+        }
+        return same;
+    }
+
+    /**
+     * Compiles a program with an I/O context and runs it once on empty input
+     *
+     * @param tree: the parse tree of the program
+     * @param options: sets the options on the visitor before it runs
+     * @return what the program printed, followed by the message of the exception it ended with, if any
+     * @throws ReflectiveOperationException if the program can't be run
+     */
+    private static String runMetered(KnightCodeParser.FileContext tree, Consumer<CustomVisitor> options) throws ReflectiveOperationException {
+        CustomVisitor visitor = new CustomVisitor();
+        visitor.setVerbose(false);
+        visitor.setIOContext(true);
+        options.accept(visitor);
+        visitor.setSourceFile(tree.getStart().getTokenSource().getSourceName());
+        visitor.setClassName("output/" + tree.ID().getText());
+        visitor.visit(tree);
+        Class<?> type = new ByteClassLoader(Benchmark.class.getClassLoader()).define(visitor.getClassName(), visitor.getBytecode());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            type.getMethod(CustomVisitor.RUN_METHOD, IOContext.class).invoke(null, new StreamIOContext(new ByteArrayInputStream(new byte[0]), new PrintStream(out, true)));
+        } catch (InvocationTargetException e) {
+            return out.toString() + "!" + e.getCause().getMessage();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Replays random saves of a generated program through watch mode's IncrementalParser.  Each edit changes a number or a string, inserts, copies or deletes a statement, adds a comment line or respaces a line, and after each one the updated tree is compiled and compared byte for byte with a clean parse and compile of the same text.
+     * Codegen is timed once, as it is the same for both.  A program too large for one main method is still parsed both ways, and then both must fail the same way
+     *
+     * @param args: the command line arguments, with the number of statements and of edits
+     * @throws IOException never, the program is generated in memory
+     */
+    private static void watch(String[] args) throws IOException {
+        int statements = args.length > 1 ? Integer.parseInt(args[1]) : 1500;
+        int edits = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        List<String> lines = new ArrayList<>(Arrays.asList(syntheticProgram(statements).split("\n", -1)));
+        //The body runs from after BEGIN to before the last PRINT
+        int bodyStart = lines.indexOf("BEGIN") + 1;
+        Consumer<CustomVisitor> options = visitor -> { };
+        IncrementalParser parser = new IncrementalParser("synthetic.kc");
+        parser.update(String.join("\n", lines));
+        Random random = new Random(42);
+
+        long incremental = 0;
+        long slowest = 0;
+        long clean = 0;
+        long codegen = 0;
+        int fullParses = 0;
+        int reparsed = 0;
+        int mismatches = 0;
+        int tooLarge = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + edits; i++) {
+            editProgram(lines, bodyStart, random);
+            String source = String.join("\n", lines);
+
+            long start = System.nanoTime();
+            KnightCodeParser.FileContext tree = parser.update(source);
+            long parsed = System.nanoTime();
+            KnightCodeParser.FileContext cleanTree = kcc.parse(CharStreams.fromString(source, "synthetic.kc"));
+            long cleanParsed = System.nanoTime();
+
+            String code = generated(tree, options);
+            long generated = System.nanoTime();
+            String cleanCode = generated(cleanTree, options);
+            if (!code.equals(cleanCode)) {
+                mismatches++;
+            }
+            if (i >= WARMUP_ROUNDS) {
+                incremental += parsed - start;
+                slowest = Math.max(slowest, parsed - start);
+                clean += cleanParsed - parsed;
+                codegen += generated - cleanParsed;
+                fullParses += parser.isFullParse() ? 1 : 0;
+                reparsed += parser.getReparsedStatements();
+                tooLarge += code.startsWith("!") ? 1 : 0;
+            }
+        }
+
+        System.out.println(statements + " statements, " + lines.size() + " lines, " + edits + " edits");
+        System.out.printf("%-20s %10.3f ms/edit, slowest %.3f ms, %d full parses, %.1f statements reparsed/edit%n", "incremental parse", incremental / 1e6 / edits, slowest / 1e6, fullParses, (double) reparsed / edits);
+        System.out.printf("%-20s %10.3f ms/edit%n", "clean parse", clean / 1e6 / edits);
+        System.out.printf("%-20s %10.3f ms/edit%s%n", "codegen", codegen / 1e6 / edits, tooLarge > 0 ? ", " + tooLarge + " classes too large" : "");
+        System.out.println("Classes differing from a clean build: " + mismatches);
+    }
+
+    /**
+     * Makes one random edit to the body of a generated program, keeping it valid
+     *
+     * @param lines: the lines of the program, edited in place
+     * @param bodyStart: the index of the first statement line
+     * @param random: the source of edits
+     */
+    private static void editProgram(List<String> lines, int bodyStart, Random random) {
+        int line = bodyStart + random.nextInt(lines.size() - bodyStart - 3);
+        String text = lines.get(line);
+        switch (random.nextInt(6)) {
+            case 0:
+                lines.set(line, text.replaceFirst("[0-9]+", String.valueOf(random.nextInt(100000))));
+                break;
+            case 1:
+                if (text.contains("\"")) {
+                    lines.set(line, text.replaceFirst("\"$", " edited\""));
+                }
+                else if (text.startsWith("\tSET")) {
+                    lines.set(line, text + " + 1");
+                }
+                break;
+            case 2:
+                lines.add(line, "\tSET x := x * " + random.nextInt(100) + " - y");
+                break;
+            case 3:
+                if (text.startsWith("\t") && !text.startsWith("\t#")) {
+                    lines.add(line, text);
+                }
+                break;
+            case 4:
+                if (text.startsWith("\t") && lines.size() - bodyStart > 10) {
+                    lines.remove(line);
+                }
+                break;
+            default:
+                lines.set(line, random.nextBoolean() ? "\t# note " + random.nextInt(100) : text.replace(" := ", "  :=  "));
+        }
+    }
+
+    /**
+     * Generates the class of a tree for comparing two builds
+     *
+     * @param tree: the parse tree
+     * @param options: the code generation options
+     * @return the bytecode as a string of bytes, or ! and the message if the class can't be written
+     */
+    private static String generated(KnightCodeParser.FileContext tree, Consumer<CustomVisitor> options) {
+        try {
+            return new String(WatchCompiler.generate(tree, options, "synthetic.kc", null), StandardCharsets.ISO_8859_1);
+        } catch (RuntimeException e) {
+            return "!" + e.getMessage();
+        }
+    }
+
+    /**
+     * Builds a program of straight-line arithmetic followed by a nested loop
+     *
+     * @param padding: the number of statements before the loop
+     * @return the source of the program
+     */
+    private static String loopProgram(int padding) {
+        StringBuilder src = new StringBuilder("PROGRAM Loops\nDECLARE\n\tINTEGER i\n\tINTEGER j\n\tINTEGER a\n\tINTEGER sum\nBEGIN\n");
+        for (int k = 0; k < padding; k++) {
+            src.append("\tSET a := a + ").append(k).append(" * 3 - a / 5\n");
+        }
+        src.append("\tSET i := 2000\n\tWHILE i > 0 DO\n\t\tSET j := 1000\n\t\tWHILE j > 0 DO\n");
+        src.append("\t\t\tSET sum := sum + (i * j) / 7 - a\n\t\t\tSET j := j - 1\n\t\tENDWHILE\n");
+        return src.append("\t\tSET i := i - 1\n\tENDWHILE\n\tPRINT sum\nEND\n").toString();
+    }
+
+    /**
+     * Builds a program whose loop does a little arithmetic and then checks it many times for a condition that never holds, each check with a few statements of error handling
+     *
+     * @param checks: the number of IF checks
+     * @param iterations: the loop iterations
+     * @return the source of the program
+     */
+    private static String pgoProgram(int checks, int iterations) {
+        StringBuilder src = new StringBuilder("PROGRAM Pgo\nDECLARE\n\tINTEGER i\n\tINTEGER n\n\tINTEGER sum\n\tINTEGER errors\n\tSTRING msg\nBEGIN\n");
+        src.append("\tWHILE i < ").append(iterations).append(" DO\n");
+        src.append("\t\tSET n := i - (i / 7) * 7\n\t\tSET sum := sum + n * 3\n");
+        for (int k = 0; k < checks; k++) {
+            src.append("\t\tIF n > ").append(100 + k).append(" THEN\n");
+            src.append("\t\t\tSET errors := errors + ").append(k + 1).append("\n");
+            src.append("\t\t\tSET sum := sum - errors * 2\n");
+            src.append("\t\t\tSET msg := \"check ").append(k).append("\"\n");
+            src.append("\t\t\tPRINT msg\n\t\t\tPRINT errors\n\t\t\tPRINT sum\n");
+            src.append("\t\t\tSET sum := sum + (errors - ").append(k).append(") * 3 / 2\n");
+            src.append("\t\t\tPRINT sum\n\t\t\tPRINT \"resetting the sum\"\n\t\t\tSET sum := (sum - errors) / 2 + n\n");
+            src.append("\t\t\tSET errors := errors * 2 - (n + ").append(k).append(") / 3\n");
+            src.append("\t\t\tPRINT \"errors now\"\n\t\t\tPRINT errors\n\t\tENDIF\n");
+        }
+        return src.append("\t\tSET i := i + 1\n\tENDWHILE\n\tPRINT sum\n\tPRINT errors\nEND\n").toString();
+    }
+
+    /**
+     * Builds a program that dispatches on a code that cycles through every case, with each case adding a different amount
+     *
+     * @param cases: the number of IF tests
+     * @param spacing: the distance between the numbers tested, 1 for dense keys
+     * @param iterations: the number of dispatches
+     * @return the source of the program
+     */
+    private static String dispatchProgram(int cases, int spacing, int iterations) {
+        StringBuilder src = new StringBuilder("PROGRAM Dispatch\nDECLARE\n\tINTEGER i\n\tINTEGER code\n\tINTEGER acc\nBEGIN\n");
+        src.append("\tWHILE i < ").append(iterations).append(" DO\n");
+        src.append("\t\tSET code := (i - (i / ").append(cases).append(") * ").append(cases).append(") * ").append(spacing).append("\n");
+        for (int k = 0; k < cases; k++) {
+            src.append("\t\tIF code = ").append(k * spacing).append(" THEN SET acc := acc + ").append(k + 1).append(" ENDIF\n");
+        }
+        return src.append("\t\tSET i := i + 1\n\tENDWHILE\n\tPRINT acc\nEND\n").toString();
+    }
+
+    /**
+     * Compiles a corpus of generated programs of mixed sizes in this process, then on the compile farm with 1, 2, 4 and more workers up to the maximum, and reports the speedup over one worker
+     *
+     * @param args: the command line arguments, with the number of programs and the most workers to try
+     * @throws Exception if the programs can't be written or compiled
+     */
+    private static void farm(String[] args) throws Exception {
+        int programs = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        int maxWorkers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Path workDir = Files.createTempDirectory("kcfarm");
+        Random random = new Random(42);
+        List<Path> inputs = new ArrayList<>();
+        long bytes = 0;
+        for (int i = 0; i < programs; i++) {
+            //A few large programs among many small ones, the mix that load balancing has to handle
+            int statements = random.nextInt(10) == 0 ? 800 + random.nextInt(800) : 20 + random.nextInt(200);
+            Path input = workDir.resolve("p" + i + ".kc");
+            Files.write(input, syntheticProgram(statements).replace("PROGRAM Synthetic", "PROGRAM P" + i).getBytes(StandardCharsets.UTF_8));
+            inputs.add(input);
+            bytes += Files.size(input);
+        }
+        System.out.println(programs + " programs, " + bytes + " source bytes, " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        long start = System.nanoTime();
+        for (Path input : inputs) {
+            kcc.compile(kcc.readSource(input.toString()), input.getFileName().toString(), false, false, 8);
+        }
+        System.out.printf("%-20s %10.1f ms%n", "in process", (System.nanoTime() - start) / 1e6);
+
+        long oneWorker = 0;
+        for (int workers = 1; workers <= maxWorkers; workers *= 2) {
+            start = System.nanoTime();
+            int failed = 0;
+            for (CompileCoordinator.Compiled result : new CompileCoordinator(workers).compileAll(inputs)) {
+                failed += result.getError() != null ? 1 : 0;
+            }
+            long elapsed = System.nanoTime() - start;
+            oneWorker = workers == 1 ? elapsed : oneWorker;
+            System.out.printf("%-20s %10.1f ms %8.2fx speedup %5d failed%n", workers + " workers", elapsed / 1e6, (double) oneWorker / elapsed, failed);
+        }
+    }
+
+    /**
+     * Prints one line of write throughput
+     *
+     * @param label: the name of the output layout
+     * @param nanos: the time taken to write every class
+     * @param classes: the number of classes written
+     * @param bytes: the total size of the classes
+     */
+    private static void writeReport(String label, long nanos, int classes, long bytes) {
+        System.out.printf("%-20s %10.1f ms %10.0f classes/s %8.2f MB/s%n", label, nanos / 1e6,
+            classes / (nanos / 1e9), bytes / (nanos / 1e9) / (1024 * 1024));
+    }
+
+    /**
+     * Launches a compiled program repeatedly in fresh JVMs and prints the median time to exit
+     *
+     * @param label: the name of the configuration
+     * @param runs: the number of launches
+     * @param arguments: the JVM options, class path and main class
+     * @throws Exception if the program can't be launched
+     */
+    private static void launchRuns(String label, int runs, String... arguments) throws Exception {
+        long[] exit = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(Arrays.asList(arguments));
+
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            process.waitFor();
+            exit[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(exit);
+        System.out.printf("%-20s %10.1f ms to exit%n", "launch " + label, exit[runs / 2] / 1e6);
+    }
+
+    /**
+     * Gets the class path of this JVM with every entry made absolute, for launching kcc from another directory
+     *
+     * @return the class path
+     */
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(classPath.length() == 0 ? "" : File.pathSeparator).append(Path.of(entry).toAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    /**
+     * Parses the way the compiler did before the two stage front end
+     *
+     * @param inputFile: the path of the source file
+     * @throws IOException if the file can't be read
+     */
+    private static void parseBaseline(String inputFile) throws IOException {
+        CharStream input = CharStreams.fromFileName(inputFile);
+        KnightCodeParser parser = new KnightCodeParser(new CommonTokenStream(new KnightCodeLexer(input)));
+        parser.file();
+    }
+
+    /**
+     * Returns the source file named on the command line, or generates one when a statement count is given instead
+     *
+     * @param args: the command line arguments
+     * @return the path of the source file
+     * @throws IOException if the generated program can't be written
+     */
+    private static String sourceArgument(String[] args) throws IOException {
+        if (args.length > 1 && !args[1].matches("[0-9]+")) {
+            return args[1];
+        }
+        int statements = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        Path file = Files.createTempFile("kcbench", ".kc");
+        file.toFile().deleteOnExit();
+        Files.write(file, syntheticProgram(statements).getBytes(StandardCharsets.UTF_8));
+        return file.toString();
+    }
+
+    /**
+     * Builds a straight line program with the given number of statements, mixing arithmetic, printing, decisions and loops
+     *
+     * @param statements: the number of statements in the body
+     * @return the source of the program
+     */
+    static String syntheticProgram(int statements) {
+        StringBuilder src = new StringBuilder("PROGRAM Synthetic\nDECLARE\n\tINTEGER x\n\tINTEGER y\n\tSTRING s\nBEGIN\n");
+        for (int i = 0; i < statements; i++) {
+            switch (i % 4) {
+                case 0:
+                    src.append("\tSET x := (x + ").append(i).append(") * 3 - y / 7\n");
+                    break;
+                case 1:
+                    src.append("\tIF x > y THEN SET y := y + 1 ELSE SET y := y - 1 ENDIF\n");
+                    break;
+                case 2:
+                    src.append("\tWHILE y > 100 DO SET y := y - 100 ENDWHILE\n");
+                    break;
+                default:
+                    src.append("\tSET s := \"line ").append(i).append("\"\n");
+            }
+        }
+        return src.append("\tPRINT x\nEND\n").toString();
+    }
+
+    /**
+     * Prints one line of results
+     *
+     * @param label: the name of the measured path
+     * @param nanos: the total time taken
+     * @param rounds: the number of rounds measured
+     * @param bytes: the size of the input in bytes
+     */
+    private static void report(String label, long nanos, int rounds, long bytes) {
+        double millis = nanos / 1e6 / rounds;
+        double mbPerSecond = (bytes * (double) rounds) / (nanos / 1e9) / (1024 * 1024);
+        System.out.printf("%-20s %10.2f ms/parse %10.2f MB/s%n", label, millis, mbPerSecond);
+    }
+
+}
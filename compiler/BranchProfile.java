@@ -0,0 +1,174 @@
+package compiler;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* BranchProfile Class that collects the branch and trip counts of a program compiled for profile-guided training, and writes them at exit for the next compile to use.
+* Each IF has a counter pair of times evaluated and times its THEN ran, and each WHILE of times entered and iterations.  They are keyed by the kind, line and column of the statement, for example "IF 12:4", and written to <source name>.pgo in the directory named by the kc.profile.dir property, or the working directory.
+* Every class trained on a source writes to the same file, so only the first one registered for a file adds a shutdown hook, and it writes the counts of all of them added up
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public final class BranchProfile extends Thread {
+
+    private static final List<BranchProfile> REGISTERED = new ArrayList<>();
+
+    private final String sourceFile;
+    private final Path file;
+    private final String keys;
+    private final long[] counts;
+
+    /**
+     * Constructor
+     *
+     * @param sourceFile: the name of the KnightCode source
+     * @param keys: the key of each counter pair, separated by commas
+     * @param counts: two counters for each key
+     */
+    private BranchProfile(String sourceFile, String keys, long[] counts) {
+        this.sourceFile = sourceFile;
+        String base = Paths.get(sourceFile).getFileName().toString();
+        if (base.endsWith(".kc")) {
+            base = base.substring(0, base.length() - 3);
+        }
+        this.file = Paths.get(System.getProperty("kc.profile.dir", "."), base + ".pgo").toAbsolutePath().normalize();
+        this.keys = keys;
+        this.counts = counts;
+    }
+
+    /**
+     * Registers the counters of a training class so they are written at exit, along with those of any other class that writes the same file.  Called from the static initializer of the generated class
+     *
+     * @param sourceFile: the name of the KnightCode source
+     * @param keys: the key of each counter pair, separated by commas
+     * @param counts: two counters for each key
+     */
+    public static void register(String sourceFile, String keys, long[] counts) {
+        BranchProfile profile = new BranchProfile(sourceFile, keys, counts);
+        boolean first = true;
+        synchronized (REGISTERED) {
+            for (BranchProfile other : REGISTERED) {
+                if (other.file.equals(profile.file)) {
+                    first = false;
+                }
+            }
+            REGISTERED.add(profile);
+        }
+        //One hook per file, so two classes of one source don't race to write it
+        if (first) {
+            Runtime.getRuntime().addShutdownHook(profile);
+        }
+    }
+
+    /**
+     * Gets the counts collected so far in this JVM for a source, adding up every class trained on it, so a program can be trained and recompiled without exiting
+     *
+     * @param sourceFile: the name of the KnightCode source
+     * @return the counter pairs by key
+     */
+    public static Map<String, long[]> counts(String sourceFile) {
+        Map<String, long[]> merged = new LinkedHashMap<>();
+        synchronized (REGISTERED) {
+            for (BranchProfile profile : REGISTERED) {
+                if (profile.sourceFile.equals(sourceFile)) {
+                    profile.addTo(merged);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Reads a profile written at the exit of a training run.  Blank lines and lines starting with # are skipped, and any other line must be a kind, a line:column and two counts
+     *
+     * @param file: the .pgo file
+     * @return the counter pairs by key
+     * @throws IOException if the file can't be read or a line isn't a counter pair, with a message naming the file and the line
+     */
+    public static Map<String, long[]> load(Path file) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IOException("***Can't read profile " + file + "***", e);
+        }
+        Map<String, long[]> profile = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            //Up to 18 digits so a count always fits in a long
+            if (fields.length != 4 || !fields[0].matches("IF|WHILE") || !fields[1].matches("[0-9]{1,9}:[0-9]{1,9}") || !fields[2].matches("[0-9]{1,18}") || !fields[3].matches("[0-9]{1,18}")) {
+                throw new IOException("***Can't read profile " + file + ": line " + (i + 1) + "***");
+            }
+            profile.put(fields[0] + " " + fields[1], new long[] {Long.parseLong(fields[2]), Long.parseLong(fields[3])});
+        }
+        return profile;
+    }
+
+    /**
+     * Adds this class's counters into a map of counter pairs
+     *
+     * @param merged: the counter pairs by key
+     */
+    private void addTo(Map<String, long[]> merged) {
+        String[] keyList = keys.isEmpty() ? new String[0] : keys.split(",");
+        for (int i = 0; i < keyList.length; i++) {
+            long[] pair = merged.get(keyList[i]);
+            if (pair == null) {
+                pair = new long[2];
+                merged.put(keyList[i], pair);
+            }
+            pair[0] += counts[2 * i];
+            pair[1] += counts[2 * i + 1];
+        }
+    }
+
+    /**
+     * Writes the profile of every class registered for this file, added up.  Runs as a shutdown hook, so like ProfileReport it avoids lambdas, formatters and string concatenation, and it holds the registry lock while writing so no class is added or counted halfway
+     */
+    @Override
+    public void run() {
+        synchronized (REGISTERED) {
+            Map<String, long[]> merged = new LinkedHashMap<>();
+            for (BranchProfile profile : REGISTERED) {
+                if (profile.file.equals(file)) {
+                    profile.addTo(merged);
+                }
+            }
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+                out.print("# Branch profile of ");
+                out.println(sourceFile);
+                out.println("# IF line:column evaluated then-taken / WHILE line:column entered iterations");
+                for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+                    out.print(entry.getKey());
+                    out.print(' ');
+                    out.print(entry.getValue()[0]);
+                    out.print(' ');
+                    out.println(entry.getValue()[1]);
+                }
+                System.err.print("Branch profile written to ");
+                System.err.println(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package compiler;
+
+/**
+* BudgetExceededException Class thrown by a metered program when it runs out of its execution budget.  A program run from its main exits with ExecutionBudget.EXIT_CODE instead, while one run in-process, for example by BatchRunner, can catch it and carry on with the next program
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class BudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor
+     *
+     * @param message: which budget ran out
+     */
+    public BudgetExceededException(String message) {
+        super(message);
+    }
+
+}
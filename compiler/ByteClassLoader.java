@@ -0,0 +1,34 @@
+package compiler;
+
+/**
+* ByteClassLoader Class that defines classes straight from bytecode generated in memory, so compiled KnightCode can be run without writing class files
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class ByteClassLoader extends ClassLoader {
+
+    /**
+     * Constructor
+     * 
+     * @param parent: the class loader to delegate to
+     */
+    public ByteClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    /**
+     * Defines a class from its bytecode
+     * 
+     * @param className: the internal name of the class, for example output/Program1
+     * @param code: the bytecode of the class
+     * @return the defined class
+     */
+    public Class<?> define(String className, byte[] code) {
+        return defineClass(className.replace('/', '.'), code, 0, code.length);
+    }
+
+}
@@ -0,0 +1,451 @@
+package compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* CompileCoordinator Class that spreads the compilation of many programs over worker processes.  Each worker is a CompileWorker started on this machine that connects back over a localhost socket; a worker on another host could be pointed at the coordinator the same way.
+* Sources are handed out largest first and a worker takes the next one as soon as it finishes, which balances the load by source size.  If a worker dies or stops answering, its program goes back to the front of the queue and the worker is replaced, and a program that fails on MAX_ATTEMPTS workers is reported as failed
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class CompileCoordinator {
+
+    /** Number of workers a program may be sent to before it is given up on */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /** Number of times a worker slot is restarted after its worker fails */
+    public static final int MAX_RESTARTS = 3;
+
+    //How long a worker may take to connect or to answer before it is treated as failed
+    private static final int TIMEOUT_MILLIS = 60000;
+
+    private final int workers;
+    private boolean ioContext;
+    private boolean profiling;
+    private int target;
+    private int crashAfter;
+
+    /**
+     * Constructor
+     *
+     * @param workers: the number of worker processes to run
+     */
+    public CompileCoordinator(int workers) {
+        this.workers = workers;
+        this.target = 8;
+        this.crashAfter = -1;
+    }
+
+    /**
+     * Main method that compiles the programs given on the command line into ./output, or into a JAR, and reports how the work was spread
+     *
+     * @param args: [-workers N] [-jar output jar] [-io] [-profile] [-target 8|17|21] [-crash-after N] followed by the input files
+     * @throws Exception if a source can't be read or the output can't be written
+     */
+    public static void main(String[] args) throws Exception {
+        int workers = Runtime.getRuntime().availableProcessors();
+        String jarFile = null;
+        boolean ioContext = false;
+        boolean profiling = false;
+        int target = 8;
+        int crashAfter = -1;
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("-"); first++) {
+            switch (args[first]) {
+                case "-workers":
+                    workers = first + 1 < args.length && args[first + 1].matches("[1-9][0-9]{0,8}") ? Integer.parseInt(args[++first]) : 0;
+                    if (workers == 0) {
+                        first = args.length;
+                    }
+                    break;
+                case "-jar":
+                    jarFile = first + 1 < args.length ? args[++first] : null;
+                    if (jarFile == null) {
+                        first = args.length;
+                    }
+                    break;
+                case "-io":
+                    ioContext = true;
+                    break;
+                case "-profile":
+                    profiling = true;
+                    break;
+                case "-target":
+                    target = first + 1 < args.length && args[first + 1].matches("8|17|21") ? Integer.parseInt(args[++first]) : -1;
+                    if (target < 0) {
+                        first = args.length;
+                    }
+                    break;
+                case "-crash-after":
+                    crashAfter = first + 1 < args.length && args[first + 1].matches("[0-9]{1,9}") ? Integer.parseInt(args[++first]) : -1;
+                    if (crashAfter < 0) {
+                        first = args.length;
+                    }
+                    break;
+                default:
+                    first = args.length;
+            }
+        }
+        if (first >= args.length) {
+            System.out.println("***Usage: java compiler/CompileCoordinator [-workers N] [-jar <output jar>] [-io] [-profile] [-target 8|17|21] [-crash-after N] <input file> ...***");
+            return;
+        }
+
+        List<Path> inputs = new ArrayList<>();
+        for (int i = first; i < args.length; i++) {
+            inputs.add(Paths.get(args[i]));
+        }
+
+        CompileCoordinator coordinator = new CompileCoordinator(workers);
+        coordinator.setIOContext(ioContext);
+        coordinator.setProfiling(profiling);
+        coordinator.setTarget(target);
+        coordinator.setCrashAfter(crashAfter);
+        long start = System.nanoTime();
+        List<Compiled> results = coordinator.compileAll(inputs);
+        long elapsed = System.nanoTime() - start;
+
+        //Write in input order so the output doesn't depend on which worker finished first
+        int failed = 0;
+        Set<String> names = new HashSet<>();
+        JarWriter jar = jarFile != null ? new JarWriter(Paths.get(jarFile)) : null;
+        for (Compiled result : results) {
+            if (result.error == null && !names.add(result.className)) {
+                result.error = "***Duplicate class '" + result.className + "'***";
+            }
+            if (result.error != null) {
+                failed++;
+                System.out.println("***" + result.inputFile + " failed***");
+                System.out.println(result.error);
+            }
+            else if (jar != null) {
+                jar.add(result.className, result.code);
+            }
+            else {
+                Path classFile = Paths.get(result.className + ".class");
+                Files.createDirectories(classFile.getParent());
+                Files.write(classFile, result.code);
+            }
+        }
+        if (jar != null) {
+            jar.write();
+        }
+
+        System.out.printf("%d programs (%d failed) in %.1f ms with %d workers%n", results.size(), failed, elapsed / 1e6, workers);
+        for (int worker = 0; worker < workers; worker++) {
+            int programs = 0;
+            long bytes = 0;
+            for (Compiled result : results) {
+                if (result.worker == worker) {
+                    programs++;
+                    bytes += result.source.length;
+                }
+            }
+            System.out.printf("worker %d: %d programs, %d source bytes%n", worker, programs, bytes);
+        }
+    }
+
+    /**
+     * Sets whether the programs take their input and output as a parameter, see CustomVisitor.setIOContext
+     *
+     * @param ioContext: true to generate the run method
+     */
+    public void setIOContext(boolean ioContext) {
+        this.ioContext = ioContext;
+    }
+
+    /**
+     * Sets whether the programs count how often each statement runs, see CustomVisitor.setProfiling
+     *
+     * @param profiling: true to add the counters
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    /**
+     * Sets the Java release the classes target, see CustomVisitor.setTarget
+     *
+     * @param target: 8, 17 or 21
+     */
+    public void setTarget(int target) {
+        this.target = target;
+    }
+
+    /**
+     * Makes the first worker halt while compiling its program after the given number, for testing retries
+     *
+     * @param crashAfter: the number of programs the first worker compiles before it crashes, or -1 to never crash
+     */
+    public void setCrashAfter(int crashAfter) {
+        this.crashAfter = crashAfter;
+    }
+
+    /**
+     * Compiles every program on the workers and waits for all of them
+     *
+     * @param inputs: the paths of the KnightCode sources
+     * @return the outcome of each program, in the same order as the inputs
+     * @throws IOException if a source can't be read
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public List<Compiled> compileAll(List<Path> inputs) throws IOException, InterruptedException {
+        List<Compiled> results = new ArrayList<>();
+        for (Path input : inputs) {
+            results.add(new Compiled(results.size(), input, Files.readAllBytes(input)));
+        }
+        List<Compiled> largestFirst = new ArrayList<>(results);
+        largestFirst.sort(Comparator.comparingInt((Compiled compiled) -> compiled.source.length).reversed());
+        BlockingDeque<Compiled> queue = new LinkedBlockingDeque<>(largestFirst);
+        AtomicInteger remaining = new AtomicInteger(results.size());
+
+        List<Thread> slots = new ArrayList<>();
+        for (int worker = 0; worker < workers; worker++) {
+            int slot = worker;
+            Thread thread = new Thread(() -> serve(slot, queue, remaining), "kcc-worker-" + slot);
+            thread.start();
+            slots.add(thread);
+        }
+        for (Thread thread : slots) {
+            thread.join();
+        }
+
+        //Every worker slot gave up, so whatever is left was never compiled
+        for (Compiled result : results) {
+            if (result.code == null && result.error == null) {
+                result.error = "***No worker left to compile it***";
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs one worker slot: starts a worker, feeds it programs until there are none left and replaces it if it fails.  Each worker connects to a port of its own, so the connection always belongs to the process the slot started
+     *
+     * @param slot: the number of the slot
+     * @param queue: the programs still to compile, largest first
+     * @param remaining: the number of programs not yet finished
+     */
+    private void serve(int slot, BlockingDeque<Compiled> queue, AtomicInteger remaining) {
+        for (int restarts = 0; restarts <= MAX_RESTARTS && remaining.get() > 0; restarts++) {
+            Process process = null;
+            Compiled job = null;
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                server.setSoTimeout(TIMEOUT_MILLIS);
+                process = startWorker(server.getLocalPort(), slot == 0 && restarts == 0 ? crashAfter : -1);
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeBoolean(ioContext);
+                    out.writeBoolean(profiling);
+                    out.writeInt(target);
+
+                    while ((job = next(queue, remaining)) != null) {
+                        out.writeInt(job.id);
+                        out.writeUTF(job.inputFile.getFileName().toString());
+                        out.writeInt(job.source.length);
+                        out.write(job.source);
+                        out.flush();
+
+                        if (in.readInt() != job.id) {
+                            throw new IOException("***Worker answered for the wrong program***");
+                        }
+                        if (in.readBoolean()) {
+                            String className = in.readUTF();
+                            byte[] code = new byte[in.readInt()];
+                            in.readFully(code);
+                            job.className = className;
+                            job.code = code;
+                        }
+                        else {
+                            job.error = in.readUTF();
+                        }
+                        job.worker = slot;
+                        job = null;
+                        remaining.decrementAndGet();
+                    }
+                    out.writeInt(-1);
+                    out.flush();
+                }
+                process.waitFor(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (IOException e) {
+                System.err.println("***Worker " + slot + " failed: " + e + "***");
+                if (job != null) {
+                    retry(job, queue, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                if (process != null && process.isAlive()) {
+                    process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts a program that was lost with its worker back at the front of the queue, or gives up on it after MAX_ATTEMPTS
+     *
+     * @param job: the program
+     * @param queue: the programs still to compile
+     * @param remaining: the number of programs not yet finished
+     */
+    private static void retry(Compiled job, BlockingDeque<Compiled> queue, AtomicInteger remaining) {
+        job.attempts++;
+        if (job.attempts >= MAX_ATTEMPTS) {
+            job.error = "***Lost with its worker " + MAX_ATTEMPTS + " times***";
+            remaining.decrementAndGet();
+        }
+        else {
+            queue.addFirst(job);
+        }
+    }
+
+    /**
+     * Takes the next program to compile, waiting while other workers might still hand one back
+     *
+     * @param queue: the programs still to compile
+     * @param remaining: the number of programs not yet finished
+     * @return the program, or null once every program is finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static Compiled next(BlockingDeque<Compiled> queue, AtomicInteger remaining) throws InterruptedException {
+        while (remaining.get() > 0) {
+            Compiled job = queue.poll(50, TimeUnit.MILLISECONDS);
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts a worker process on this machine with the same class path as the coordinator
+     *
+     * @param port: the port the coordinator listens on
+     * @param crashAfter: the number of programs after which the worker crashes, or -1
+     * @return the worker process
+     * @throws IOException if the process can't be started
+     */
+    private static Process startWorker(int port, int crashAfter) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add("compiler.CompileWorker");
+        command.add(InetAddress.getLoopbackAddress().getHostAddress());
+        command.add(Integer.toString(port));
+        if (crashAfter >= 0) {
+            command.add(Integer.toString(crashAfter));
+        }
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Gets the class path of this JVM with every entry made absolute, so workers can start from any directory
+     *
+     * @return the class path
+     */
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(classPath.length() == 0 ? "" : File.pathSeparator).append(Paths.get(entry).toAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    /**
+     * One program sent to the workers, and what came back
+     */
+    public static class Compiled {
+        private final int id;
+        private final Path inputFile;
+        private final byte[] source;
+        private String className;
+        private byte[] code;
+        private String error;
+        private int attempts;
+        private int worker;
+
+        Compiled(int id, Path inputFile, byte[] source) {
+            this.id = id;
+            this.inputFile = inputFile;
+            this.source = source;
+            this.worker = -1;
+        }
+
+        /**
+         * Gets the path of the source
+         *
+         * @return the input file
+         */
+        public Path getInputFile() {
+            return inputFile;
+        }
+
+        /**
+         * Gets the internal name of the compiled class
+         *
+         * @return the class name, or null if the program failed
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * Gets the compiled class
+         *
+         * @return the bytecode, or null if the program failed
+         */
+        public byte[] getCode() {
+            return code;
+        }
+
+        /**
+         * Gets why the program failed
+         *
+         * @return the error, or null if the program compiled
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Gets the worker slot that compiled the program
+         *
+         * @return the slot, or -1 if no worker finished it
+         */
+        public int getWorker() {
+            return worker;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.antlr.v4.runtime.CharStreams;
+
+/**
+* CompileWorker Class that compiles programs for a CompileCoordinator.  The worker connects to the coordinator, receives the code generation options and then one source at a time, and streams back either the compiled class or the error.
+* Sources are sent over the socket rather than read from disk, so a worker can run on another host
+*
+* Protocol, all values written with DataOutputStream:
+*   coordinator: boolean ioContext, boolean profiling, int target release
+*   coordinator: int id, UTF source file name, int length, source bytes (UTF-8), repeated; an id below 0 ends the session
+*   worker: int id, boolean compiled, then UTF class name, int length, class bytes, or else UTF error message
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class CompileWorker {
+
+    /**
+     * Main method that serves one coordinator until it ends the session
+     *
+     * @param args: the coordinator's host and port, and optionally a number of programs after which the worker crashes, for testing retries
+     * @throws IOException if the connection fails
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("***Usage: java compiler/CompileWorker <host> <port> [<crash after>]***");
+            return;
+        }
+        int crashAfter = args.length > 2 ? Integer.parseInt(args[2]) : -1;
+
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            serve(in, out, crashAfter);
+        } catch (EOFException e) {
+            //The coordinator went away, there is nobody left to report to
+        }
+    }
+
+    /**
+     * Compiles sources until the coordinator ends the session
+     *
+     * @param in: the stream from the coordinator
+     * @param out: the stream to the coordinator
+     * @param crashAfter: the number of programs to compile before halting mid-job, or -1 to never crash
+     * @throws IOException if the connection fails
+     */
+    private static void serve(DataInputStream in, DataOutputStream out, int crashAfter) throws IOException {
+        boolean ioContext = in.readBoolean();
+        boolean profiling = in.readBoolean();
+        int target = in.readInt();
+
+        for (int done = 0; ; done++) {
+            int id = in.readInt();
+            if (id < 0) {
+                return;
+            }
+            String sourceFile = in.readUTF();
+            byte[] source = new byte[in.readInt()];
+            in.readFully(source);
+
+            if (done == crashAfter) {
+                Runtime.getRuntime().halt(1);
+            }
+
+            out.writeInt(id);
+            try {
+                CustomVisitor visitor = kcc.compile(CharStreams.fromString(new String(source, StandardCharsets.UTF_8), sourceFile), sourceFile, ioContext, profiling, target);
+                out.writeBoolean(true);
+                out.writeUTF(visitor.getClassName());
+                out.writeInt(visitor.getBytecode().length);
+                out.write(visitor.getBytecode());
+            } catch (RuntimeException e) {
+                out.writeBoolean(false);
+                out.writeUTF(String.valueOf(e.getMessage()));
+            }
+            out.flush();
+        }
+    }
+
+}
@@ -3,7 +3,19 @@ package compiler;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
 import lexparse.KnightCodeBaseVisitor;
 import lexparse.KnightCodeParser;
@@ -24,19 +36,289 @@ import org.objectweb.asm.Opcodes;
 **/
 public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opcodes {
 
+    /** Name of the method generated by compileLoop */
+    public static final String LOOP_METHOD = "run";
+
+    /** Descriptor of the method generated by compileLoop, taking the integer and string variables */
+    public static final String LOOP_DESCRIPTOR = "([I[Ljava/lang/String;)V";
+
+    /** Internal name of the I/O context interface used by programs generated with setIOContext */
+    public static final String IO_CONTEXT = "compiler/IOContext";
+
+    /** Name of the entry point generated with setIOContext */
+    public static final String RUN_METHOD = "run";
+
+    /** Descriptor of the entry point generated with setIOContext */
+    public static final String RUN_DESCRIPTOR = "(L" + IO_CONTEXT + ";)V";
+
+    /** Name of the static long[] of block counters generated with setProfiling */
+    public static final String COUNTS_FIELD = "$counts";
+
+    /** Name of the static long[] of branch counters generated with setPgoTraining, two for each IF and WHILE */
+    public static final String BRANCHES_FIELD = "$branches";
+
+    /** Prefix of the private static methods cold statements are moved to when compiling with a branch profile */
+    public static final String OUTLINED_PREFIX = "$cold";
+
+    /** Prefix of the private static methods WHILE loops are moved to with setLoopOutlining */
+    public static final String LOOP_PREFIX = "$loop";
+
+    /** Internal name of the class that meters programs generated with setExecutionBudget */
+    public static final String EXECUTION_BUDGET = "compiler/ExecutionBudget";
+
+    /** Internal name of the exception a metered program throws when its budget runs out */
+    public static final String BUDGET_EXCEPTION = "compiler/BudgetExceededException";
+
+    /** Descriptor of an outlined method when the program takes an I/O context */
+    public static final String OUTLINED_IO_DESCRIPTOR = "(L" + IO_CONTEXT + ";[I[Ljava/lang/String;)V";
+
+    //A branch taken less than this percent of the times its IF runs is cold
+    private static final int COLD_PERCENT = 1;
+
+    //Fewest tokens worth moving to another method.  A source token compiles to about a byte and a half, and a call site to CALL_BYTES plus COPY_BYTES for each variable copied in or out, so a cold branch is only moved when the call is smaller
+    private static final int OUTLINE_MIN_TOKENS = 12;
+    private static final int CALL_BYTES = 20;
+    private static final int COPY_BYTES = 7;
+
+    //Fewest iterations in the profile that make a loop hot enough to rotate
+    private static final long HOT_LOOP_ITERATIONS = 1000;
+
+    //Most statement lists of a loop body counted in locals of the loop when profiling, the rest count in $counts
+    private static final int LOOP_BLOCK_COUNTERS = 8;
+
+    //Local holding the I/O context in the run method
+    private static final int IO_LOCAL = 0;
+
+    //Frame types of the parameters of each generated method
+    private static final Object[] MAIN_PARAMETERS = {"[Ljava/lang/String;"};
+    private static final Object[] RUN_PARAMETERS = {IO_CONTEXT};
+    private static final Object[] LOOP_PARAMETERS = {"[I", "[Ljava/lang/String;"};
+    private static final Object[] OUTLINED_IO_PARAMETERS = {IO_CONTEXT, "[I", "[Ljava/lang/String;"};
+
     private ClassWriter cw;
     private MethodVisitor mv;
     private SymbolTable symbolTable;
     private int nextLocalInt;
     private String outputFile;
+    private String className;
+    private byte[] bytecode;
+    private boolean verbose;
+    private boolean ioContext;
+    private boolean profiling;
+    private String sourceFile;
+    private List<StringBuilder> blockLines;
+    private int currentBlock;
+    private int currentCounter;
+    private int[] currentDerived;
+    private int[] pendingDerived;
+    private List<int[]> loopBlockCounters;
+    private int nextLoopCounter;
+    private int loopCountersEnd;
+    private Label loopCountersFull;
+    private Label loopCountersFlushed;
+    private int target;
+    private Object[] parameterTypes;
+    private Deque<Integer> liveCounters;
+    private int lastFrameOffset;
+    private boolean switchLowering;
+    private SwitchLowering lowering;
+    private boolean pgoTraining;
+    private List<String> branchKeys;
+    private Map<String, long[]> pgoProfile;
+    private KnightCodeParser.DeclareContext declare;
+    private CustomVisitor root;
+    private int outlinedMethods;
+    private int outlinedLoops;
+    private boolean loopOutlining;
+    private int stateLocal;
+    private boolean metering;
+    private long budgetSteps;
+    private long budgetMillis;
+    private int fuelLocal;
 
     /**
      * Constructor
      */
     public CustomVisitor() {
-        symbolTable = new SymbolTable();
+        //The visitor knows the type of every local at each branch target, so it writes the stack map frames itself and ASM only computes the max stack and locals
+        this(ClassWriter.COMPUTE_MAXS);
+    }
+
+    /**
+     * Constructor with the ASM ClassWriter flags, so Benchmark can still generate code the old way with COMPUTE_FRAMES
+     * 
+     * @param writerFlags: the ClassWriter flags
+     */
+    CustomVisitor(int writerFlags) {
+        this(new ClassWriter(writerFlags));
+    }
+
+    /**
+     * Constructor for a visitor writing methods into the given class
+     * 
+     * @param cw: the class writer
+     */
+    private CustomVisitor(ClassWriter cw) {
+        //Local 0 holds the String[] argument of main
+        symbolTable = new SymbolTable(1);
         nextLocalInt = 1;
-        cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        verbose = true;
+        blockLines = new ArrayList<>();
+        currentBlock = -1;
+        currentCounter = -1;
+        loopBlockCounters = new ArrayList<>();
+        target = V1_8;
+        liveCounters = new ArrayDeque<>();
+        switchLowering = true;
+        lowering = new SwitchLowering(symbolTable);
+        branchKeys = new ArrayList<>();
+        root = this;
+        stateLocal = -1;
+        this.cw = cw;
+    }
+
+    /**
+     * Creates a visitor that generates another method of the same class with the same options, sharing the counters of this one
+     * 
+     * @return the visitor
+     */
+    private CustomVisitor methodVisitor() {
+        CustomVisitor child = new CustomVisitor(cw);
+        child.root = root;
+        child.verbose = verbose;
+        child.className = className;
+        child.ioContext = ioContext;
+        child.profiling = profiling;
+        child.sourceFile = sourceFile;
+        child.blockLines = blockLines;
+        child.switchLowering = switchLowering;
+        child.pgoTraining = pgoTraining;
+        child.branchKeys = branchKeys;
+        child.pgoProfile = pgoProfile;
+        child.declare = declare;
+        child.loopOutlining = loopOutlining;
+        child.metering = metering;
+        child.budgetSteps = budgetSteps;
+        child.budgetMillis = budgetMillis;
+        return child;
+    }
+
+    /**
+     * Sets whether the visitor prints a trace of each node it visits
+     * 
+     * @param verbose: true to print the trace
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+        symbolTable.setVerbose(verbose);
+    }
+
+    /**
+     * Sets whether the program takes its input and output as a parameter.  The body is then generated into a static run(IOContext) method and main only calls it with a context over System.in and System.out, so many programs can run in one JVM without sharing I/O
+     * 
+     * @param ioContext: true to generate the run method
+     */
+    public void setIOContext(boolean ioContext) {
+        this.ioContext = ioContext;
+    }
+
+    /**
+     * Sets whether the program counts how often each statement runs.  The class gets a static long[] with a counter for each statement list, counted in locals inside loops, and when the program exits a hot line report is written next to it by ProfileReport
+     * 
+     * @param profiling: true to add the counters
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    /**
+     * Sets the name of the KnightCode source recorded in the SourceFile attribute, so stack traces and profilers show .kc lines.  Must be called before the class name is set
+     * 
+     * @param sourceFile: the file name of the source, for example program1.kc
+     */
+    public void setSourceFile(String sourceFile) {
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Sets whether chains of IF statements testing one INTEGER variable for equality are compiled to a tableswitch or lookupswitch, see SwitchLowering.  On by default
+     * 
+     * @param switchLowering: false to compile every IF to its own compare and branch
+     */
+    public void setSwitchLowering(boolean switchLowering) {
+        this.switchLowering = switchLowering;
+    }
+
+    /**
+     * Sets whether the program counts how its branches go, for a later compile with setPgoProfile.  The class gets a static long[] with a pair of counters for each IF and WHILE, and when the program exits BranchProfile writes them to a .pgo file
+     * 
+     * @param pgoTraining: true to add the counters
+     */
+    public void setPgoTraining(boolean pgoTraining) {
+        this.pgoTraining = pgoTraining;
+    }
+
+    /**
+     * Sets the branch profile of a training run to lay the code out by.  The more common side of each IF follows its test, statements that almost never run are moved to private static methods so the hot method stays small enough for the JIT, and hot loops are rotated to test at the bottom
+     * 
+     * @param pgoProfile: the counter pairs by key, as read by BranchProfile.load, or null to compile without a profile
+     */
+    public void setPgoProfile(Map<String, long[]> pgoProfile) {
+        this.pgoProfile = pgoProfile;
+    }
+
+    /**
+     * Sets whether each WHILE loop is compiled into a private static method of its own.  HotSpot can then compile a loop like any other method, instead of only through on-stack replacement of a main it runs once, inline an inner loop into the loop around it, and never meets a main too big to compile
+     * 
+     * @param loopOutlining: true to move the loops out of line
+     */
+    public void setLoopOutlining(boolean loopOutlining) {
+        this.loopOutlining = loopOutlining;
+    }
+
+    /**
+     * Sets an execution budget the program stops at, see ExecutionBudget.  Each method counts the iterations of its loops down as fuel in a local and only calls ExecutionBudget for more when it runs out, and main exits with ExecutionBudget.EXIT_CODE when the budget is exceeded
+     * 
+     * @param steps: the most loop iterations the program may run, 0 for no limit
+     * @param millis: the most milliseconds the program may run, 0 for no limit
+     */
+    public void setExecutionBudget(long steps, long millis) {
+        metering = steps > 0 || millis > 0;
+        budgetSteps = steps;
+        budgetMillis = millis;
+    }
+
+    /**
+     * Sets the Java release the class file targets.  Must be called before the class name is set
+     * 
+     * @param release: 8, 17 or 21
+     * @throws IllegalArgumentException if the release isn't supported
+     */
+    public void setTarget(int release) {
+        switch (release) {
+            case 8:
+                target = V1_8;
+                break;
+            case 17:
+                target = V17;
+                break;
+            case 21:
+                target = V21;
+                break;
+            default:
+                throw new IllegalArgumentException("***Unsupported target " + release + ", use 8, 17 or 21***");
+        }
+    }
+
+    /**
+     * Prints a trace message when verbose output is on
+     * 
+     * @param message: the message to print
+     */
+    private void trace(String message) {
+        if (verbose) {
+            System.out.println(message);
+        }
     }
 
     /**
@@ -46,8 +328,21 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     public void setOutputFile(String outputFile) {
         this.outputFile = outputFile;  
+        setClassName("output/" + outputFile);
+    }
+
+    /**
+     * Sets the internal name of the generated class and initialize the bytecode generation, without writing the class to a file when it is finished
+     * 
+     * @param className: the internal name of the class, for example output/Program1
+     */
+    public void setClassName(String className) {
+        this.className = className;
 
-        cw.visit(V1_8, ACC_PUBLIC, "output/" + outputFile, null, "java/lang/Object", null);
+        cw.visit(target, ACC_PUBLIC, className, null, "java/lang/Object", null);
+        if (sourceFile != null) {
+            cw.visitSource(sourceFile, null);
+        }
 
         {   
             // Setup constructor
@@ -71,17 +366,56 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitFile(KnightCodeParser.FileContext ctx) {
-        System.out.println("visiting File");
+        trace("visiting File");
     
         mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", "([Ljava/lang/String;)V", null, null);
         mv.visitCode();
+        startFrames(MAIN_PARAMETERS);
+        Label budgetHandler = metering ? tryBudget() : null;
+
+        if (ioContext) {
+            //main just runs the program on the console
+            mv.visitTypeInsn(NEW, "compiler/StreamIOContext");
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETSTATIC, "java/lang/System", "in", "Ljava/io/InputStream;");
+            mv.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+            mv.visitMethodInsn(INVOKESPECIAL, "compiler/StreamIOContext", "<init>", "(Ljava/io/InputStream;Ljava/io/PrintStream;)V", false);
+            mv.visitMethodInsn(INVOKESTATIC, className, RUN_METHOD, RUN_DESCRIPTOR, false);
+            mv.visitInsn(RETURN);
+            if (metering) {
+                catchBudget(budgetHandler);
+            }
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            //Local 0 holds the context, the same slot as args in main
+            mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, RUN_METHOD, RUN_DESCRIPTOR, null, null);
+            mv.visitCode();
+            startFrames(RUN_PARAMETERS);
+        }
+
+        if (metering) {
+            //Each run of the program gets the whole budget
+            mv.visitLdcInsn(budgetSteps);
+            mv.visitLdcInsn(budgetMillis);
+            mv.visitMethodInsn(INVOKESTATIC, EXECUTION_BUDGET, "begin", "(JJ)V", false);
+        }
 
-        if (ctx.declare() != null) {
-            visit(ctx.declare());
+        declare = ctx.declare();
+        if (declare != null) {
+            visit(declare);
+        }
+        if (loopOutlining && containsLoop(ctx.body().stat())) {
+            allocateState();
         }
+        startMetering();
 
         visit(ctx.body());
+        finishMetering();
         mv.visitInsn(RETURN);
+        if (metering && !ioContext) {
+            catchBudget(budgetHandler);
+        }
         mv.visitMaxs(0, 0);
         mv.visitEnd();
 
@@ -90,19 +424,283 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
         return null;
     }
 
+    /**
+     * Generates a class holding a single WHILE loop, used to move a hot loop out of the interpreter.  The static method run takes the integer and string variables as arrays indexed by declaration order, loads them into locals, runs the loop from its condition and stores them back
+     * 
+     * @param className: the internal name of the class to generate
+     * @param declare: the declarations of the program the loop belongs to
+     * @param loop: the loop to compile
+     * @return the bytecode of the class
+     */
+    public byte[] compileLoop(String className, KnightCodeParser.DeclareContext declare, KnightCodeParser.LoopContext loop) {
+        trace("Compiling Loop");
+        this.declare = declare;
+        setClassName(className);
+        generateStateMethod(ACC_PUBLIC + ACC_STATIC, LOOP_METHOD, false, () -> visit(loop));
+        finish();
+        return bytecode;
+    }
+
+    /**
+     * Generates a static method that takes the integer and string variables as arrays indexed by declaration order, loads them into locals, runs some statements and stores them back.  With setIOContext the I/O context comes first, in local 0 as in the run method
+     * 
+     * @param access: the access flags of the method
+     * @param name: the name of the method
+     * @param callsOut: true if the statements call outlined loops, so the method needs state arrays of its own to call them with
+     * @param body: generates the statements
+     */
+    private void generateStateMethod(int access, String name, boolean callsOut, Runnable body) {
+        //The two arrays follow the I/O context, if there is one
+        int ints = ioContext ? 1 : 0;
+        int strings = ints + 1;
+        symbolTable = new SymbolTable(strings + 1);
+        symbolTable.setVerbose(verbose);
+        lowering = new SwitchLowering(symbolTable);
+        nextLocalInt = strings + 1;
+
+        mv = cw.visitMethod(access, name, ioContext ? OUTLINED_IO_DESCRIPTOR : LOOP_DESCRIPTOR, null, null);
+        mv.visitCode();
+        startFrames(ioContext ? OUTLINED_IO_PARAMETERS : LOOP_PARAMETERS);
+
+        List<Variable> variables = declare != null ? declareVariables(declare) : new ArrayList<>();
+        for (Variable var : variables) {
+            mv.visitVarInsn(ALOAD, var.isInt() ? ints : strings);
+            mv.visitLdcInsn(var.getIndex() - strings - 1);
+            if (var.isInt()) {
+                mv.visitInsn(IALOAD);
+                mv.visitVarInsn(ISTORE, var.getIndex());
+            } 
+            else {
+                mv.visitInsn(AALOAD);
+                mv.visitVarInsn(ASTORE, var.getIndex());
+            }
+        }
+        if (callsOut) {
+            allocateState();
+        }
+        startMetering();
+
+        body.run();
+        finishMetering();
+
+        //Copy the variables back so the caller continues with the new values
+        for (Variable var : variables) {
+            mv.visitVarInsn(ALOAD, var.isInt() ? ints : strings);
+            mv.visitLdcInsn(var.getIndex() - strings - 1);
+            if (var.isInt()) {
+                mv.visitVarInsn(ILOAD, var.getIndex());
+                mv.visitInsn(IASTORE);
+            } 
+            else {
+                mv.visitVarInsn(ALOAD, var.getIndex());
+                mv.visitInsn(AASTORE);
+            }
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
     /**
      * Completes the bytecode generation and write it to a specific file path
      */
     public void finish() {
-        System.out.println("Visiting Finish");
+        trace("Visiting Finish");
+
+        if (profiling || pgoTraining) {
+            finishCounters();
+        }
     
         cw.visitEnd();
     
-        byte[] code = cw.toByteArray();
+        bytecode = cw.toByteArray();
+
+        if (outputFile != null) {
+            writeClassToFile(bytecode, "./output/" + this.outputFile + ".class");
+            trace("Finished generating output file: " + this.outputFile + ".class");
+        }
+
+    }
+
+    /**
+     * Adds the counter arrays and a static initializer that creates them and registers them, the block counters with ProfileReport along with the source lines of each block, and the branch counters with BranchProfile along with the key of each pair
+     */
+    private void finishCounters() {
+        MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+
+        if (profiling) {
+            cw.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL, COUNTS_FIELD, "[J", null, null).visitEnd();
+
+            StringBuilder blocks = new StringBuilder();
+            for (StringBuilder lines : blockLines) {
+                blocks.append(blocks.length() == 0 ? "" : ",").append(lines);
+            }
+
+            mv.visitLdcInsn(blockLines.size());
+            mv.visitIntInsn(NEWARRAY, T_LONG);
+            mv.visitFieldInsn(PUTSTATIC, className, COUNTS_FIELD, "[J");
+            mv.visitLdcInsn(sourceFile != null ? sourceFile : className);
+            mv.visitLdcInsn(blocks.toString());
+            mv.visitFieldInsn(GETSTATIC, className, COUNTS_FIELD, "[J");
+            mv.visitMethodInsn(INVOKESTATIC, "compiler/ProfileReport", "register", "(Ljava/lang/String;Ljava/lang/String;[J)V", false);
+        }
+
+        if (pgoTraining) {
+            cw.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL, BRANCHES_FIELD, "[J", null, null).visitEnd();
+
+            mv.visitLdcInsn(2 * branchKeys.size());
+            mv.visitIntInsn(NEWARRAY, T_LONG);
+            mv.visitFieldInsn(PUTSTATIC, className, BRANCHES_FIELD, "[J");
+            mv.visitLdcInsn(sourceFile != null ? sourceFile : className);
+            mv.visitLdcInsn(String.join(",", branchKeys));
+            mv.visitFieldInsn(GETSTATIC, className, BRANCHES_FIELD, "[J");
+            mv.visitMethodInsn(INVOKESTATIC, "compiler/BranchProfile", "register", "(Ljava/lang/String;Ljava/lang/String;[J)V", false);
+        }
+
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Gets the bytecode of the generated class once finish has run
+     * 
+     * @return the bytecode, or null if the class isn't finished
+     */
+    public byte[] getBytecode() {
+        return bytecode;
+    }
+
+    /**
+     * Gets the internal name of the generated class
+     * 
+     * @return the internal name of the class
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Starts tracking stack map frames for a new method
+     * 
+     * @param parameters: the frame types of the method's parameters
+     */
+    private void startFrames(Object[] parameters) {
+        parameterTypes = parameters;
+        liveCounters.clear();
+        stateLocal = -1;
+        fuelLocal = -1;
+        lastFrameOffset = -1;
+    }
+
+    /**
+     * Takes the fuel of a metered method in a local when it starts.  The fuel starts with a chunk of steps rather than empty, so with only a step budget the call for more is never taken while HotSpot profiles the loop, and the compiled loop only has a trap for it
+     */
+    private void startMetering() {
+        if (!metering) {
+            return;
+        }
+        fuelLocal = nextLocalInt++;
+        takeFuel();
+    }
+
+    /**
+     * Takes fuel from the budget into the fuel local, when a metered method starts or an outlined method it called returns
+     */
+    private void takeFuel() {
+        mv.visitMethodInsn(INVOKESTATIC, EXECUTION_BUDGET, "take", "()I", false);
+        mv.visitVarInsn(ISTORE, fuelLocal);
+    }
+
+    /**
+     * Gives the fuel a metered method didn't use back to the budget before it returns or calls an outlined method
+     */
+    private void finishMetering() {
+        if (!metering) {
+            return;
+        }
+        mv.visitVarInsn(ILOAD, fuelLocal);
+        mv.visitMethodInsn(INVOKESTATIC, EXECUTION_BUDGET, "refund", "(I)V", false);
+    }
+
+    /**
+     * Takes a step of fuel on a loop's back edge, an IINC and a compare that skips the call for more fuel, so the loop keeps a single back edge.  The time budget is checked in that call too
+     */
+    private void meterBackEdge() {
+        Label fuelled = new Label();
+        mv.visitIincInsn(fuelLocal, -1);
+        mv.visitVarInsn(ILOAD, fuelLocal);
+        mv.visitJumpInsn(IFGE, fuelled);
+        mv.visitMethodInsn(INVOKESTATIC, EXECUTION_BUDGET, "charge", "()I", false);
+        mv.visitVarInsn(ISTORE, fuelLocal);
+        visitTargetLabel(fuelled);
+    }
+
+    /**
+     * Opens a try block around the code of main that follows, for a metered program
+     * 
+     * @return the label of the handler, to pass to catchBudget
+     */
+    private Label tryBudget() {
+        Label start = new Label();
+        Label handler = new Label();
+        mv.visitTryCatchBlock(start, handler, handler, BUDGET_EXCEPTION);
+        mv.visitLabel(start);
+        return handler;
+    }
+
+    /**
+     * Closes the try block of tryBudget after the last instruction of main with a handler that exits through ExecutionBudget.exit
+     * 
+     * @param handler: the label returned by tryBudget
+     */
+    private void catchBudget(Label handler) {
+        mv.visitLabel(handler);
+        lastFrameOffset = handler.getOffset();
+        mv.visitFrame(F_NEW, MAIN_PARAMETERS.length, MAIN_PARAMETERS, 1, new Object[] {BUDGET_EXCEPTION});
+        mv.visitMethodInsn(INVOKESTATIC, EXECUTION_BUDGET, "exit", "(L" + BUDGET_EXCEPTION + ";)V", false);
+        mv.visitInsn(RETURN);
+    }
 
-        writeClassToFile(code, "./output/" + this.outputFile + ".class");
-        System.out.println("Finished generating output file: " + this.outputFile + ".class");
+    /**
+     * Places a label that is the target of a jump, followed by the stack map frame the verifier needs there.  The stack is always empty between statements, and the locals are the parameters, the declared variables and the block counters of the loops being profiled around the label.
+     * Scanner locals are left out, they are never live across a label.  Two labels at the same offset share the first frame
+     * 
+     * @param label: the label to place
+     */
+    private void visitTargetLabel(Label label) {
+        mv.visitLabel(label);
+        if (label.getOffset() == lastFrameOffset) {
+            return;
+        }
+        lastFrameOffset = label.getOffset();
+
+        Object[] slots = new Object[nextLocalInt];
+        Arrays.fill(slots, TOP);
+        System.arraycopy(parameterTypes, 0, slots, 0, parameterTypes.length);
+        for (HashMap<String, Variable> span : symbolTable.getSpans()) {
+            for (Variable var : span.values()) {
+                slots[var.getIndex()] = var.isInt() ? INTEGER : "java/lang/String";
+            }
+        }
+        for (int counter : liveCounters) {
+            slots[counter] = INTEGER;
+        }
+        if (stateLocal >= 0) {
+            slots[stateLocal] = "[I";
+            slots[stateLocal + 1] = "[Ljava/lang/String;";
+        }
+        if (fuelLocal >= 0) {
+            slots[fuelLocal] = INTEGER;
+        }
 
+        //TOPs at the end can be left off
+        int used = slots.length;
+        while (used > 0 && slots[used - 1] == TOP) {
+            used--;
+        }
+        mv.visitFrame(F_NEW, used, Arrays.copyOf(slots, used), 0, null);
     }
 
     /**
@@ -127,16 +725,16 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitPrint(KnightCodeParser.PrintContext ctx) {
-        System.out.println("Visiting Print");
+        trace("Visiting Print");
     
-        mv.visitFieldInsn(Opcodes.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        loadOutput();
 
             if(ctx.STRING() != null){
             String text = ctx.STRING().getText();
             text = text.substring(1, text.length()-1).replace("\\\"", "\"").replace("\\\\", "\\");
 
             mv.visitLdcInsn(text);                
-            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", false);
+            invokePrintln("(Ljava/lang/String;)V");
             }
             else if(ctx.ID() != null){
                 Variable var = symbolTable.getVariable(ctx.ID().getText());
@@ -147,11 +745,11 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
                 }
                 if(var.isInt()){
                     mv.visitVarInsn(Opcodes.ILOAD, var.getIndex());
-                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "println", "(I)V", false);
+                    invokePrintln("(I)V");
                 }
                 else if(!var.isInt()){
                     mv.visitVarInsn(Opcodes.ALOAD, var.getIndex());
-                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", false);
+                    invokePrintln("(Ljava/lang/String;)V");
                 }
             }
             else{
@@ -161,6 +759,32 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
         return super.visitPrint(ctx);
     }
 
+    /**
+     * Pushes the output that PRINT writes to, System.out or the I/O context parameter
+     */
+    private void loadOutput() {
+        if (ioContext) {
+            mv.visitVarInsn(Opcodes.ALOAD, IO_LOCAL);
+        }
+        else {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        }
+    }
+
+    /**
+     * Prints the value on top of the stack to the output pushed by loadOutput
+     * 
+     * @param descriptor: the descriptor of the println method for the type of the value
+     */
+    private void invokePrintln(String descriptor) {
+        if (ioContext) {
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, IO_CONTEXT, "print", descriptor, true);
+        }
+        else {
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "println", descriptor, false);
+        }
+    }
+
     /**
      * Loads a variable from the local variable array into the stack based on its type.  This method is used to load the variables value before it needs to be used
      * 
@@ -168,7 +792,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      * @param type: the type of the variable
      */
     private void loadVariable(String varName, String type) {
-        System.out.println("Loading Variable");
+        trace("Loading Variable");
         int index = getVariableIndex(varName);
         if (type.equals("INTEGER")) {
             mv.visitVarInsn(ILOAD, index);
@@ -212,7 +836,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Void visitVariable(KnightCodeParser.VariableContext ctx) {
-        System.out.println("Visiting Variable");
+        trace("Visiting Variable");
         String varName = ctx.identifier().ID().getText();
         
         if (!symbolTable.isDeclared(varName)) {
@@ -233,12 +857,26 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Void visitRead(KnightCodeParser.ReadContext ctx) {
-        System.out.println("Visting Read");
+        trace("Visting Read");
         String varName = ctx.ID().getText();
         Variable var = symbolTable.getVariable(varName);
         if (var == null) {
             throw new RuntimeException("***Variable '" + varName + "' not found.***");
         }
+
+        //Reads through the I/O context parameter, which keeps one reader for the whole run
+        if (ioContext) {
+            mv.visitVarInsn(Opcodes.ALOAD, IO_LOCAL);
+            if (var.isInt()) {
+                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, IO_CONTEXT, "readInt", "()I", true);
+                mv.visitVarInsn(Opcodes.ISTORE, var.getIndex());
+            }
+            else {
+                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, IO_CONTEXT, "readString", "()Ljava/lang/String;", true);
+                mv.visitVarInsn(Opcodes.ASTORE, var.getIndex());
+            }
+            return null;
+        }
     
         int scanLocation = nextLocalInt++;
         mv.visitTypeInsn(Opcodes.NEW, "java/util/Scanner");
@@ -273,7 +911,28 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Void visitDeclare(KnightCodeParser.DeclareContext ctx) {
-        System.out.println("Visiting Declare");
+        trace("Visiting Declare");
+        for (Variable var : declareVariables(ctx)) {
+            if (var.isInt()) {
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, var.getIndex());
+            } 
+            else {
+                mv.visitLdcInsn("");
+                mv.visitVarInsn(ASTORE, var.getIndex());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Declares each variable of the declare context in the symbol table without generating any code, and moves the next free local past them
+     * 
+     * @param ctx: declare context from the parse tree
+     * @return the newly declared variables in declaration order
+     */
+    private List<Variable> declareVariables(KnightCodeParser.DeclareContext ctx) {
+        List<Variable> declared = new ArrayList<>();
         for (KnightCodeParser.VariableContext varCtx : ctx.variable()) {
             String varName = varCtx.identifier().ID().getText();
             String type = varCtx.vartype().getText();
@@ -281,15 +940,8 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
                 if (!symbolTable.isDeclared(varName)) {
                     symbolTable.declareVariable(varName, type, getDefaultInitialValue(type));
                     Variable var = symbolTable.getVariable(varName);
-
-                    if ("INTEGER".equals(type)) {
-                        mv.visitInsn(ICONST_0);
-                        mv.visitVarInsn(ISTORE, var.getIndex());
-                    } 
-                    else if ("STRING".equals(type)) {
-                        mv.visitLdcInsn("");
-                        mv.visitVarInsn(ASTORE, var.getIndex());
-                    }
+                    declared.add(var);
+                    nextLocalInt = Math.max(nextLocalInt, var.getIndex() + 1);
                 } 
                 else {
                     System.out.println("***Variable '" + varName + "' already declared.***");
@@ -298,7 +950,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
                 System.err.println(e.getMessage());
             }
         }
-        return null;
+        return declared;
     }
 
 
@@ -326,45 +978,193 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Void visitBody(KnightCodeParser.BodyContext ctx) {
-        System.out.println("Visiting Body");
-        for (KnightCodeParser.StatContext statCtx : ctx.stat()) {
-            visit(statCtx);
-        }
+        trace("Visiting Body");
+        visitStatements(ctx.stat());
         return null;
     }
 
     /**
-     * Visiting the Setvar instruction, evaluating expressions and assigning their values to variables or directly setting string values
+     * Visits a list of statements that run one after another, such as a body, a loop body or one branch of a decision.  Each list has a block counter of its own for profiling, and runs of IF statements that can share one switch are compiled together.
+     * Nothing leaves a statement list part way, so short of an error ending the program every statement in it runs as often as the first, including those after an IF or a WHILE, and one counter covers the whole list
      * 
-     * @param ctx the context for setting a variable 
-     * @return null
-     * @throws RuntimeException if the variable isnt found
+     * @param stats: the statement contexts, in order
+     * @return the local the list was counted in, or -1 if it wasn't counted in a local
      */
-    @Override
-    public Void visitSetvar(KnightCodeParser.SetvarContext ctx) {
-        System.out.println("Visiting Setvar");
-        String varName = ctx.ID().getText();
-        System.out.println("Setting variable: " + varName);
+    private int visitStatements(List<? extends ParseTree> stats) {
+        int outerBlock = currentBlock;
+        int outerCounter = currentCounter;
+        int[] outerDerived = currentDerived;
+        currentBlock = -1;
+        currentCounter = -1;
+        currentDerived = pendingDerived;
+        pendingDerived = null;
+        for (int i = 0; i < stats.size(); i++) {
+            SwitchLowering.Chain chain = switchLowering ? lowering.sequentialChain(stats, i) : null;
+            if (chain == null) {
+                visit(stats.get(i));
+                continue;
+            }
 
-        Variable var = symbolTable.getVariable(varName);
-        if (var == null) {
+            //The whole run counts as one statement on the line of its first IF
+            markStatement((KnightCodeParser.StatContext) stats.get(i));
+            for (int j = i + 1; j < i + chain.getStatements(); j++) {
+                addBlockLine(((KnightCodeParser.StatContext) stats.get(j)).getStart().getLine());
+            }
+            visitSwitch(chain);
+            i += chain.getStatements() - 1;
+        }
+        int counter = currentCounter;
+        currentBlock = outerBlock;
+        currentCounter = outerCounter;
+        currentDerived = outerDerived;
+        return counter;
+    }
+
+    /**
+     * Visits a statement, marking its line in the line number table and, when profiling, counting it.  Statements in a list share the counter of the first one, so only the first statement of each list pays for an increment
+     * 
+     * @param ctx: the statement context from the parse tree
+     * @return null
+     */
+    @Override
+    public Object visitStat(KnightCodeParser.StatContext ctx) {
+        markStatement(ctx);
+        visitChildren(ctx);
+
+        //An expression on its own computes a value nobody uses
+        if (ctx.expr() != null) {
+            mv.visitInsn(POP);
+        }
+        return null;
+    }
+
+    /**
+     * Marks the start of a statement in the line number table and, when profiling, counts it
+     * 
+     * @param ctx: the statement context from the parse tree
+     */
+    private void markStatement(KnightCodeParser.StatContext ctx) {
+        int line = ctx.getStart().getLine();
+        Label lineLabel = new Label();
+        mv.visitLabel(lineLabel);
+        mv.visitLineNumber(line, lineLabel);
+
+        if (profiling) {
+            if (currentBlock < 0 && currentDerived != null) {
+                //The second side of a decision in a loop body, which ran as often as the decision less the first side, worked out when the loop ends
+                currentBlock = blockLines.size();
+                blockLines.add(new StringBuilder());
+                loopBlockCounters.add(new int[] {currentDerived[0], currentBlock, currentDerived[1]});
+            }
+            else if (currentBlock < 0 && nextLoopCounter < loopCountersEnd) {
+                //A statement list of a loop body, counted in one of the loop's int locals with a single IINC
+                currentBlock = blockLines.size();
+                currentCounter = nextLoopCounter;
+                blockLines.add(new StringBuilder());
+                if (loopBlockCounters.isEmpty()) {
+                    //The body runs on every iteration, at least as often as any other list of the loop, so only its count can reach 2^31.  Then, between two iterations, all of them are added to $counts out of line and start again
+                    mv.visitVarInsn(ILOAD, nextLoopCounter);
+                    mv.visitJumpInsn(IFLT, loopCountersFull);
+                    visitTargetLabel(loopCountersFlushed);
+                }
+                mv.visitIincInsn(nextLoopCounter, 1);
+                loopBlockCounters.add(new int[] {nextLoopCounter, currentBlock});
+                nextLoopCounter++;
+            }
+            else if (currentBlock < 0) {
+                currentBlock = blockLines.size();
+                blockLines.add(new StringBuilder());
+                incrementCounter(COUNTS_FIELD, currentBlock);
+            }
+            addBlockLine(line);
+        }
+    }
+
+    /**
+     * Adds one to a counter in one of the static long[] counter arrays
+     * 
+     * @param field: the name of the array, COUNTS_FIELD or BRANCHES_FIELD
+     * @param index: the index of the counter
+     */
+    private void incrementCounter(String field, int index) {
+        mv.visitFieldInsn(GETSTATIC, className, field, "[J");
+        mv.visitLdcInsn(index);
+        mv.visitInsn(DUP2);
+        mv.visitInsn(LALOAD);
+        mv.visitInsn(LCONST_1);
+        mv.visitInsn(LADD);
+        mv.visitInsn(LASTORE);
+    }
+
+    /**
+     * Gets the key a branch is profiled under, its kind and the line and column where it starts
+     * 
+     * @param kind: IF or WHILE
+     * @param ctx: the decision or loop context
+     * @return the key, for example "IF 12:4"
+     */
+    private static String branchKey(String kind, ParserRuleContext ctx) {
+        return kind + " " + ctx.getStart().getLine() + ":" + ctx.getStart().getCharPositionInLine();
+    }
+
+    /**
+     * Gives a branch its pair of counters when training
+     * 
+     * @param key: the key of the branch
+     * @return the index of the first counter, or -1 when not training
+     */
+    private int branchCounters(String key) {
+        if (!pgoTraining) {
+            return -1;
+        }
+        branchKeys.add(key);
+        return 2 * (branchKeys.size() - 1);
+    }
+
+    /**
+     * Records that a source line belongs to the current profiling block
+     * 
+     * @param line: the line number
+     */
+    private void addBlockLine(int line) {
+        if (profiling) {
+            StringBuilder lines = blockLines.get(currentBlock);
+            lines.append(lines.length() == 0 ? "" : " ").append(line);
+        }
+    }
+
+    /**
+     * Visiting the Setvar instruction, evaluating expressions and assigning their values to variables or directly setting string values
+     * 
+     * @param ctx the context for setting a variable 
+     * @return null
+     * @throws RuntimeException if the variable isnt found
+     */
+    @Override
+    public Void visitSetvar(KnightCodeParser.SetvarContext ctx) {
+        trace("Visiting Setvar");
+        String varName = ctx.ID().getText();
+        trace("Setting variable: " + varName);
+
+        Variable var = symbolTable.getVariable(varName);
+        if (var == null) {
             throw new RuntimeException("***Variable '" + varName + "' not found.***");
         }
 
         //Evaluate the expression or set the string directly
         if (ctx.expr() != null) {
-            System.out.println("Evaluating expression for: " + varName);
+            trace("Evaluating expression for: " + varName);
             visit(ctx.expr());
         } 
         else if (ctx.STRING() != null) {
             String stringValue = ctx.STRING().getText();
             stringValue = stringValue.substring(1, stringValue.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
-            System.out.println("Setting string value: " + stringValue + " to " + varName);
+            trace("Setting string value: " + stringValue + " to " + varName);
             mv.visitLdcInsn(stringValue);
         }
 
         //Stores the value or string to the specified variable
-        System.out.println("Storing value to " + varName + " at index " + var.getIndex());
+        trace("Storing value to " + varName + " at index " + var.getIndex());
         if ("INTEGER".equals(var.getType())) {
             mv.visitVarInsn(ISTORE, var.getIndex());
         } 
@@ -392,83 +1192,423 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
     }
 
     /**
-     * Handles the decision making statements by evaluating conditions and managing branches
+     * Handles the decision making statements by evaluating conditions and managing branches.  The THEN statements follow the test and run when it falls through, and a failed test jumps to the ELSE statements or past the ENDIF.  A nested ELSE chain of equality tests on one variable becomes a switch
      * 
      * @param ctx: The decision context which includes conditions and branching
      * @return null
      */
     @Override
     public Void visitDecision(KnightCodeParser.DecisionContext ctx) {
-        System.out.println("Visiting Decision");
+        trace("Visiting Decision");
+
+        SwitchLowering.Chain chain = switchLowering ? lowering.elseChain(ctx) : null;
+        if (chain != null) {
+            visitSwitch(chain);
+            return null;
+        }
     
-        Label trueLabel = new Label();
+        Label elseLabel = new Label();
         Label endLabel = new Label();
+        int decisionCounter = currentCounter;
+
+        //Evaluated and THEN-taken counts, from the profile or counted when training
+        String key = branchKey("IF", ctx);
+        long[] counts = pgoProfile != null ? pgoProfile.get(key) : null;
+        int counters = branchCounters(key);
+        if (counters >= 0) {
+            incrementCounter(BRANCHES_FIELD, counters);
+        }
     
+        //Handle else condition if present, starting at index 5 when the THEN statement is expected 
+        int elseIndex = -1;
+        //Last child shoul be end of the IF statement
+        int endifIndex = ctx.getChildCount() - 1;
+    
+        //Loop through the children from THEN statement looking for ELSE  
+        for (int i = 5; i < ctx.getChildCount(); i++) {
+            if ("ELSE".equals(ctx.getChild(i).getText())) {
+                elseIndex = i;
+                break;
+            }
+        }
+
+        List<ParseTree> thenStats = ctx.children.subList(5, elseIndex >= 0 ? elseIndex : endifIndex);
+        List<ParseTree> elseStats = elseIndex >= 0 ? ctx.children.subList(elseIndex + 1, endifIndex) : null;
+        //A decision the training run never reached is cold on both sides
+        boolean thenCold = counts != null && isCold(counts[1], counts[0]);
+        boolean elseCold = counts != null && isCold(counts[0] - counts[1], counts[0]);
+
         //Loads the operands for comparison
-        String leftSide = ctx.getChild(1).getText();
-        String operator = ctx.getChild(2).getText();
-        String rightSide = ctx.getChild(3).getText();
-        
-        loadInteger(leftSide);
-        loadInteger(rightSide);
+        loadInteger(ctx.getChild(1).getText());
+        loadInteger(ctx.getChild(3).getText());
+
+        if (elseStats != null && counts != null && counts[0] - counts[1] > counts[1]) {
+            //The ELSE statements run more often, so they follow the test and the THEN statements are jumped to
+            Label thenLabel = new Label();
+            jumpIf(ctx.getChild(2).getText(), thenLabel);
+            int elseCounter = visitBranch(elseStats, elseCold);
+            mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+            visitTargetLabel(thenLabel);
+            if (counters >= 0) {
+                incrementCounter(BRANCHES_FIELD, counters + 1);
+            }
+            deriveCount(decisionCounter, elseCounter);
+            visitBranch(thenStats, thenCold);
+        }
+        else {
+            //Skips the THEN statements unless the comparison holds
+            jumpUnless(ctx.getChild(2).getText(), elseLabel);
+            if (counters >= 0) {
+                incrementCounter(BRANCHES_FIELD, counters + 1);
+            }
+            int thenCounter = visitBranch(thenStats, thenCold);
+            if (elseStats != null) {
+                //Jump past the ELSE statements
+                mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+                visitTargetLabel(elseLabel);
+                deriveCount(decisionCounter, thenCounter);
+                visitBranch(elseStats, elseCold);
+            }
+            else {
+                visitTargetLabel(elseLabel);
+            }
+        }
     
-        //Determins the jump based on the comparison
+        pendingDerived = null;
+
+        //Set label for end of decision block
+        visitTargetLabel(endLabel);
+        return null;
+    }
+
+    /**
+     * Has the next statement list, the second side of a decision, take its count from the local counters of the list the decision is in and of the first side, instead of counting it.  The decision runs as often as its list, so the second side runs that less the first
+     * 
+     * @param decisionCounter: the local counting the list the decision is in, or -1
+     * @param firstCounter: the local counting the first side, or -1
+     */
+    private void deriveCount(int decisionCounter, int firstCounter) {
+        pendingDerived = decisionCounter >= 0 && firstCounter >= 0 ? new int[] {decisionCounter, firstCounter} : null;
+    }
+
+    /**
+     * Jumps when a comparison of the two integers on the stack does not hold
+     * 
+     * @param operator: the comparison, >, <, = or <>
+     * @param label: where to jump
+     */
+    private void jumpUnless(String operator, Label label) {
         switch (operator) {
             case ">":
-                mv.visitJumpInsn(Opcodes.IF_ICMPGT, trueLabel);
+                mv.visitJumpInsn(Opcodes.IF_ICMPLE, label);
                 break;
             case "<":
-                mv.visitJumpInsn(Opcodes.IF_ICMPLT, trueLabel);
+                mv.visitJumpInsn(Opcodes.IF_ICMPGE, label);
                 break;
             case "=":
-                mv.visitJumpInsn(Opcodes.IF_ICMPEQ, trueLabel);
+                mv.visitJumpInsn(Opcodes.IF_ICMPNE, label);
                 break;
             case "<>":
-                mv.visitJumpInsn(Opcodes.IF_ICMPNE, trueLabel);
+                mv.visitJumpInsn(Opcodes.IF_ICMPEQ, label);
                 break;
         }
-    
-        //Handle else condition if present, starting at index 5 when the THEN statement is expected 
-        boolean hasElse = false;
-        int elseIndex = -1;
-        //Last child shoul be end of the IF statement
-        int endifIndex = ctx.getChildCount() - 1;
-    
-        //Loop through the children from THEN statement looking for ELSE  
-        for (int i = 5; i < ctx.getChildCount(); i++) {
-            if ("ELSE".equals(ctx.getChild(i).getText())) {
-                hasElse = true;
-                elseIndex = i;
+    }
+
+    /**
+     * Jumps when a comparison of the two integers on the stack holds
+     * 
+     * @param operator: the comparison, >, <, = or <>
+     * @param label: where to jump
+     */
+    private void jumpIf(String operator, Label label) {
+        switch (operator) {
+            case ">":
+                mv.visitJumpInsn(Opcodes.IF_ICMPGT, label);
+                break;
+            case "<":
+                mv.visitJumpInsn(Opcodes.IF_ICMPLT, label);
+                break;
+            case "=":
+                mv.visitJumpInsn(Opcodes.IF_ICMPEQ, label);
+                break;
+            case "<>":
+                mv.visitJumpInsn(Opcodes.IF_ICMPNE, label);
                 break;
+        }
+    }
+
+    /**
+     * Checks whether a branch of a profiled decision is cold
+     * 
+     * @param taken: the times the branch ran in training
+     * @param evaluated: the times its decision ran
+     * @return true if it ran less than COLD_PERCENT of the time
+     */
+    private static boolean isCold(long taken, long evaluated) {
+        return taken * 100 < evaluated * COLD_PERCENT || evaluated == 0;
+    }
+
+    /**
+     * Visits one side of a decision, moving it to its own method when it is cold and big enough to be worth the call
+     * 
+     * @param stats: the statements of the branch
+     * @param cold: true if the profile says the branch almost never runs
+     * @return the local the branch was counted in, or -1 if it wasn't counted in a local
+     */
+    private int visitBranch(List<ParseTree> stats, boolean cold) {
+        int tokens = cold ? tokenCount(stats) : 0;
+        if (tokens < OUTLINE_MIN_TOKENS) {
+            return visitStatements(stats);
+        }
+
+        Set<String> used = new HashSet<>();
+        Set<String> assigned = new HashSet<>();
+        for (ParseTree stat : stats) {
+            collectVariables(stat, used, assigned);
+        }
+        if (tokens * 3 / 2 > CALL_BYTES + COPY_BYTES * (used.size() + assigned.size())) {
+            visitOutlined(stats, used, assigned);
+            return -1;
+        }
+        return visitStatements(stats);
+    }
+
+    /**
+     * Finds the variables a subtree names and the ones it SETs or READs
+     * 
+     * @param tree: the subtree
+     * @param used: gets the name of every variable that appears
+     * @param assigned: gets the name of every variable that may be changed
+     */
+    private static void collectVariables(ParseTree tree, Set<String> used, Set<String> assigned) {
+        if (tree instanceof TerminalNode) {
+            if (((TerminalNode) tree).getSymbol().getType() == KnightCodeParser.ID) {
+                used.add(tree.getText());
+            }
+            return;
+        }
+        if (tree instanceof KnightCodeParser.SetvarContext) {
+            assigned.add(((KnightCodeParser.SetvarContext) tree).ID().getText());
+        }
+        else if (tree instanceof KnightCodeParser.ReadContext) {
+            assigned.add(((KnightCodeParser.ReadContext) tree).ID().getText());
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            collectVariables(tree.getChild(i), used, assigned);
+        }
+    }
+
+    /**
+     * Counts the source tokens of some statements, as a measure of the code they compile to
+     * 
+     * @param stats: the statements
+     * @return the number of tokens
+     */
+    private static int tokenCount(List<? extends ParseTree> stats) {
+        int tokens = 0;
+        for (ParseTree stat : stats) {
+            if (stat instanceof ParserRuleContext) {
+                ParserRuleContext rule = (ParserRuleContext) stat;
+                tokens += rule.getStop().getTokenIndex() - rule.getStart().getTokenIndex() + 1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Compiles statements into a private static method of their own and calls it
+     * 
+     * @param stats: the statements to move
+     * @param used: the variables the statements name
+     * @param assigned: the variables the statements may change
+     */
+    private void visitOutlined(List<ParseTree> stats, Set<String> used, Set<String> assigned) {
+        String name = OUTLINED_PREFIX + root.outlinedMethods++;
+        trace("Outlining cold statements to " + name);
+        callOutlined(name, used, assigned);
+
+        CustomVisitor outlined = methodVisitor();
+        outlined.generateStateMethod(ACC_PRIVATE + ACC_STATIC, name, false, () -> outlined.visitStatements(stats));
+    }
+
+    /**
+     * Calls an outlined method.  The variables are passed in two arrays indexed by declaration order, as compileLoop does for the interpreter.  Only the variables the method names are copied in and only the ones it changes are copied back, the rest of the arrays are left as they are.
+     * The arrays are the method's state arrays when it has them, and new ones otherwise
+     * 
+     * @param name: the name of the method
+     * @param used: the variables the method names
+     * @param assigned: the variables the method may change
+     */
+    private void callOutlined(String name, Set<String> used, Set<String> assigned) {
+        //Variables in declaration order, which matches their local slots
+        List<Variable> variables = declaredVariables();
+
+        int ints = stateLocal;
+        int strings = stateLocal + 1;
+        if (stateLocal < 0) {
+            ints = nextLocalInt++;
+            strings = nextLocalInt++;
+            newState(variables.size(), ints);
+        }
+        for (int i = 0; i < variables.size(); i++) {
+            Variable var = variables.get(i);
+            if (!used.contains(var.getName())) {
+                continue;
+            }
+            mv.visitVarInsn(ALOAD, var.isInt() ? ints : strings);
+            mv.visitLdcInsn(i);
+            mv.visitVarInsn(var.isInt() ? ILOAD : ALOAD, var.getIndex());
+            mv.visitInsn(var.isInt() ? IASTORE : AASTORE);
+        }
+
+        if (ioContext) {
+            mv.visitVarInsn(ALOAD, IO_LOCAL);
+        }
+        mv.visitVarInsn(ALOAD, ints);
+        mv.visitVarInsn(ALOAD, strings);
+        //The outlined method meters itself, so it gets the fuel this one holds for the length of the call
+        finishMetering();
+        mv.visitMethodInsn(INVOKESTATIC, className, name, ioContext ? OUTLINED_IO_DESCRIPTOR : LOOP_DESCRIPTOR, false);
+        if (metering) {
+            takeFuel();
+        }
+
+        for (int i = 0; i < variables.size(); i++) {
+            Variable var = variables.get(i);
+            if (!assigned.contains(var.getName())) {
+                continue;
+            }
+            mv.visitVarInsn(ALOAD, var.isInt() ? ints : strings);
+            mv.visitLdcInsn(i);
+            mv.visitInsn(var.isInt() ? IALOAD : AALOAD);
+            mv.visitVarInsn(var.isInt() ? ISTORE : ASTORE, var.getIndex());
+        }
+    }
+
+    /**
+     * Gets the variables of the method being generated
+     * 
+     * @return the variables in declaration order
+     */
+    private List<Variable> declaredVariables() {
+        List<Variable> variables = new ArrayList<>(symbolTable.getSpans().peek().values());
+        variables.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+        return variables;
+    }
+
+    /**
+     * Creates the state arrays of the method being generated, which every outlined loop it calls is passed.  They are made once, before the first statement, so a loop called from inside another loop doesn't allocate on each call
+     */
+    private void allocateState() {
+        stateLocal = nextLocalInt;
+        nextLocalInt += 2;
+        newState(declaredVariables().size(), stateLocal);
+    }
+
+    /**
+     * Creates an int[] and a String[] for passing the variables to an outlined method
+     * 
+     * @param size: the number of variables
+     * @param local: the local to store the int[] in, the String[] goes in the next one
+     */
+    private void newState(int size, int local) {
+        mv.visitLdcInsn(size);
+        mv.visitIntInsn(NEWARRAY, T_INT);
+        mv.visitVarInsn(ASTORE, local);
+        mv.visitLdcInsn(size);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+        mv.visitVarInsn(ASTORE, local + 1);
+    }
+
+    /**
+     * Checks whether any statement in a list, at any depth, is a WHILE loop
+     * 
+     * @param stats: the statements
+     * @return true if there is a loop
+     */
+    private static boolean containsLoop(List<? extends ParseTree> stats) {
+        for (ParseTree stat : stats) {
+            if (containsLoop(stat)) {
+                return true;
             }
         }
-        //If there is an ELSE block, process the statements within it
-        if (hasElse) {
-            for (int i = elseIndex + 1; i < endifIndex; i++) {
-                //visit each statement in the ELSE 
-                visit(ctx.getChild(i));
+        return false;
+    }
+
+    /**
+     * Checks whether a subtree is or holds a WHILE loop
+     * 
+     * @param tree: the subtree
+     * @return true if there is a loop
+     */
+    private static boolean containsLoop(ParseTree tree) {
+        if (tree instanceof KnightCodeParser.LoopContext) {
+            return true;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (containsLoop(tree.getChild(i))) {
+                return true;
             }
-            //Jump to end when done processing
-            mv.visitJumpInsn(Opcodes.GOTO, endLabel); 
         }
-        //Label and process statements for true condition
-        mv.visitLabel(trueLabel);
-        if (hasElse) {
-            //Process statement between THEN and ELSE
-            for (int i = 5; i < elseIndex; i++) {
-                visit(ctx.getChild(i));
+        return false;
+    }
+
+    /**
+     * Compiles a chain of equality tests on one variable as a single switch on it.  Each case runs its statements and leaves the switch, and the ELSE statements of an ELSE chain are the default.  Dense keys get a tableswitch and sparse ones a lookupswitch
+     * 
+     * @param chain: the chain found by SwitchLowering
+     */
+    private void visitSwitch(SwitchLowering.Chain chain) {
+        trace("Lowering IF chain on " + chain.getVariable() + " to a switch");
+        List<Integer> keys = chain.getKeys();
+        Label[] caseLabels = new Label[keys.size()];
+        for (int i = 0; i < caseLabels.length; i++) {
+            caseLabels[i] = new Label();
+        }
+        Label defaultLabel = new Label();
+        Label endLabel = new Label();
+
+        //Both switch instructions want the keys in ascending order
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(keys.get(a), keys.get(b)));
+        int low = keys.get(order[0]);
+        int high = keys.get(order[order.length - 1]);
+
+        mv.visitVarInsn(ILOAD, symbolTable.getVariable(chain.getVariable()).getIndex());
+        if (SwitchLowering.useTableSwitch(low, high, keys.size())) {
+            Label[] table = new Label[high - low + 1];
+            Arrays.fill(table, defaultLabel);
+            for (int i = 0; i < keys.size(); i++) {
+                table[keys.get(i) - low] = caseLabels[i];
             }
+            mv.visitTableSwitchInsn(low, high, defaultLabel, table);
         }
-        //If no ELSE, process all statements after THEN until ENDIF 
         else {
-            for (int i = 5; i < endifIndex; i++) {
-                visit(ctx.getChild(i));
+            int[] sortedKeys = new int[order.length];
+            Label[] sortedLabels = new Label[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedKeys[i] = keys.get(order[i]);
+                sortedLabels[i] = caseLabels[order[i]];
             }
+            mv.visitLookupSwitchInsn(defaultLabel, sortedKeys, sortedLabels);
         }
-    
-        //Set label for end of decision block
-        mv.visitLabel(endLabel);
-        return null;
+
+        //Cases stay in source order, the last one falls into an empty default
+        for (int i = 0; i < caseLabels.length; i++) {
+            visitTargetLabel(caseLabels[i]);
+            visitStatements(chain.getBodies().get(i));
+            if (i < caseLabels.length - 1 || chain.getDefaultBody() != null) {
+                mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+            }
+        }
+        visitTargetLabel(defaultLabel);
+        if (chain.getDefaultBody() != null) {
+            visitStatements(chain.getDefaultBody());
+        }
+        visitTargetLabel(endLabel);
     }
 
     /**
@@ -479,48 +1619,184 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Void visitLoop(KnightCodeParser.LoopContext ctx) {
-        System.out.println("Visiting Loop");
+        trace("Visiting Loop");
+
+        if (loopOutlining) {
+            String name = LOOP_PREFIX + root.outlinedLoops++;
+            trace("Outlining loop to " + name);
+            Set<String> used = new HashSet<>();
+            Set<String> assigned = new HashSet<>();
+            collectVariables(ctx, used, assigned);
+            callOutlined(name, used, assigned);
+
+            CustomVisitor outlined = methodVisitor();
+            outlined.generateStateMethod(ACC_PRIVATE + ACC_STATIC, name, containsLoop(ctx.stat()), () -> outlined.generateLoop(ctx));
+        }
+        else {
+            generateLoop(ctx);
+        }
+        return null;
+    }
 
+    /**
+     * Generates a loop in the current method
+     * 
+     * @param ctx: the context of the loop from the parse tree
+     */
+    private void generateLoop(KnightCodeParser.LoopContext ctx) {
         Label startLoopLabel = new Label();
         Label endLoopLabel = new Label();
 
-        //Start the loop
-        mv.visitLabel(startLoopLabel);
+        //Entered and iteration counts, from the profile or counted when training
+        String key = branchKey("WHILE", ctx);
+        long[] counts = pgoProfile != null ? pgoProfile.get(key) : null;
+        int counters = branchCounters(key);
+        if (counters >= 0) {
+            incrementCounter(BRANCHES_FIELD, counters);
+        }
+        boolean rotate = counts != null && counts[1] >= HOT_LOOP_ITERATIONS;
+
+        //When profiling, the statement lists of the body are counted in int locals and added to their block counters once the loop ends, so the loop doesn't touch $counts.  The lists of a nested loop are counted in that loop's own locals
+        List<int[]> outerCounters = loopBlockCounters;
+        int outerNext = nextLoopCounter;
+        int outerEnd = loopCountersEnd;
+        Label outerFull = loopCountersFull;
+        Label outerFlushed = loopCountersFlushed;
+        int reserved = 0;
+        if (profiling) {
+            reserved = Math.min(LOOP_BLOCK_COUNTERS, blocksIn(ctx.stat()));
+            loopBlockCounters = new ArrayList<>();
+            loopCountersFull = new Label();
+            loopCountersFlushed = new Label();
+            nextLoopCounter = nextLocalInt;
+            for (int i = 0; i < reserved; i++) {
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ISTORE, nextLocalInt);
+                liveCounters.push(nextLocalInt);
+                nextLocalInt++;
+            }
+            loopCountersEnd = nextLocalInt;
+        }
 
         //Evaluate the loop
         String leftSide = ctx.getChild(1).getText();
         String operator = ctx.getChild(2).getText();
         String rightSide = ctx.getChild(3).getText();
 
-        loadInteger(leftSide);
-        loadInteger(rightSide);
+        if (rotate) {
+            //A hot loop tests at the bottom, so each iteration takes one branch instead of a test and a GOTO
+            Label testLabel = new Label();
+            mv.visitJumpInsn(Opcodes.GOTO, testLabel);
+            visitTargetLabel(startLoopLabel);
+            if (counters >= 0) {
+                incrementCounter(BRANCHES_FIELD, counters + 1);
+            }
+            visitStatements(ctx.stat());
 
-        //Determins the jump based on the comparison
-        switch (operator) {
-            case ">":
-                mv.visitJumpInsn(Opcodes.IF_ICMPLE, endLoopLabel);
-                break;
-            case "<":
-                mv.visitJumpInsn(Opcodes.IF_ICMPGE, endLoopLabel);
-                break;
-            case "=":
-                mv.visitJumpInsn(Opcodes.IF_ICMPNE, endLoopLabel);
-                break;
-            case "<>":
-                mv.visitJumpInsn(Opcodes.IF_ICMPEQ, endLoopLabel);
-                break;
+            if (metering) {
+                meterBackEdge();
+            }
+            visitTargetLabel(testLabel);
+            mv.visitLineNumber(ctx.getStart().getLine(), testLabel);
+            loadInteger(leftSide);
+            loadInteger(rightSide);
+            jumpIf(operator, startLoopLabel);
         }
+        else {
+            //Start the loop
+            visitTargetLabel(startLoopLabel);
+
+            loadInteger(leftSide);
+            loadInteger(rightSide);
 
-        //Process all statements inside the loop body
-        ctx.stat().forEach(this::visit);
+            //Leaves the loop when the comparison no longer holds
+            jumpUnless(operator, endLoopLabel);
+            if (counters >= 0) {
+                incrementCounter(BRANCHES_FIELD, counters + 1);
+            }
 
-        //Jump to the start of the loop
-        mv.visitJumpInsn(Opcodes.GOTO, startLoopLabel);
+            //Process all statements inside the loop body
+            visitStatements(ctx.stat());
+
+            //Jump to the start of the loop
+            if (metering) {
+                meterBackEdge();
+            }
+            mv.visitJumpInsn(Opcodes.GOTO, startLoopLabel);
+        }
 
         //End of the loop
-        mv.visitLabel(endLoopLabel);
+        visitTargetLabel(endLoopLabel);
+
+        if (profiling) {
+            flushLoopCounters();
+            if (!loopBlockCounters.isEmpty()) {
+                //The body's count reached 2^31, so flush the counts, start them again from 0 and carry on with the iteration
+                Label done = new Label();
+                mv.visitJumpInsn(Opcodes.GOTO, done);
+                visitTargetLabel(loopCountersFull);
+                flushLoopCounters();
+                for (int[] counter : loopBlockCounters) {
+                    if (counter.length == 2) {
+                        mv.visitInsn(ICONST_0);
+                        mv.visitVarInsn(ISTORE, counter[0]);
+                    }
+                }
+                mv.visitJumpInsn(Opcodes.GOTO, loopCountersFlushed);
+                for (int i = 0; i < reserved; i++) {
+                    liveCounters.pop();
+                }
+                visitTargetLabel(done);
+            }
+            else {
+                for (int i = 0; i < reserved; i++) {
+                    liveCounters.pop();
+                }
+            }
+            loopBlockCounters = outerCounters;
+            nextLoopCounter = outerNext;
+            loopCountersEnd = outerEnd;
+            loopCountersFull = outerFull;
+            loopCountersFlushed = outerFlushed;
+        }
+    }
 
-        return null;
+    /**
+     * Adds the local counts of the loop being generated to $counts.  Each is read as unsigned, as the body's count can reach 2^31 before it is flushed, and the second side of a decision is the difference of two counts
+     */
+    private void flushLoopCounters() {
+        for (int[] counter : loopBlockCounters) {
+            mv.visitFieldInsn(GETSTATIC, className, COUNTS_FIELD, "[J");
+            mv.visitLdcInsn(counter[1]);
+            mv.visitInsn(DUP2);
+            mv.visitInsn(LALOAD);
+            mv.visitVarInsn(ILOAD, counter[0]);
+            if (counter.length > 2) {
+                mv.visitVarInsn(ILOAD, counter[2]);
+                mv.visitInsn(ISUB);
+            }
+            mv.visitInsn(I2L);
+            mv.visitLdcInsn(0xFFFFFFFFL);
+            mv.visitInsn(LAND);
+            mv.visitInsn(LADD);
+            mv.visitInsn(LASTORE);
+        }
+    }
+
+    /**
+     * Counts at most how many statement lists a loop body has outside the loops nested in it, to reserve a local counter for each.  The body is one, and each IF adds its THEN and ELSE sides
+     * 
+     * @param stats: the statements of the body
+     * @return the number of lists, possibly more than will be counted
+     */
+    private static int blocksIn(List<KnightCodeParser.StatContext> stats) {
+        int blocks = stats.isEmpty() ? 0 : 1;
+        for (KnightCodeParser.StatContext stat : stats) {
+            if (stat.decision() != null) {
+                blocks += 1 + blocksIn(stat.decision().stat());
+            }
+        }
+        return blocks;
     }
 
     /**
@@ -531,7 +1807,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitParenthesis(KnightCodeParser.ParenthesisContext ctx){
-        System.out.println("Handling Parenthesis");
+        trace("Handling Parenthesis");
         //Evaluate the inner expression
         visit(ctx.getChild(1)); 
         return null;
@@ -545,7 +1821,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitMultiplication(KnightCodeParser.MultiplicationContext ctx){
-        System.out.println("Multiplying");
+        trace("Multiplying");
         visit(ctx.getChild(0));
         visit(ctx.getChild(2));
         mv.visitInsn(Opcodes.IMUL);
@@ -560,7 +1836,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitDivision(KnightCodeParser.DivisionContext ctx){
-        System.out.println("Dividing");
+        trace("Dividing");
         visit(ctx.getChild(0));
         visit(ctx.getChild(2));
         mv.visitInsn(Opcodes.IDIV);
@@ -575,7 +1851,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitAddition(KnightCodeParser.AdditionContext ctx){
-        System.out.println("Adding");
+        trace("Adding");
         visit(ctx.getChild(0));
         visit(ctx.getChild(2));
         mv.visitInsn(Opcodes.IADD);
@@ -590,7 +1866,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitSubtraction(KnightCodeParser.SubtractionContext ctx){
-        System.out.println("Sutraction");
+        trace("Sutraction");
         visit(ctx.getChild(0));
         visit(ctx.getChild(2));
         mv.visitInsn(Opcodes.ISUB);
@@ -605,40 +1881,12 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitComparison(KnightCodeParser.ComparisonContext ctx){
-        System.out.println("Comparing");
+        trace("Comparing");
 
         visit(ctx.getChild(0));
         visit(ctx.getChild(2));
-
-            Label trueLabel = new Label();
-            Label endLabel = new Label();
-
-            //Determins the jump based on the comparison
-            String operator = ctx.getChild(1).getText();
-            switch(operator){
-                case ">":
-                    mv.visitJumpInsn(Opcodes.IF_ICMPGT, trueLabel);
-                    break;
-                case "<":
-                    mv.visitJumpInsn(Opcodes.IF_ICMPLT, trueLabel);
-                    break;
-                case "=":
-                    mv.visitJumpInsn(Opcodes.IF_ICMPEQ, trueLabel);
-                    break;
-                case "<>":
-                    mv.visitJumpInsn(Opcodes.IF_ICMPNE, trueLabel);
-                    break;
-            }
-
-            mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-            mv.visitLabel(trueLabel);
-            mv.visitLdcInsn(1);
-            mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-            mv.visitLabel(endLabel);
-            mv.visitLdcInsn(0);
-
-    return null;
-
+        visit(ctx.comp());
+        return null;
     }
 
     /**
@@ -649,7 +1897,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitNumber(KnightCodeParser.NumberContext ctx){
-        System.out.println("Number context");
+        trace("Number context");
         String value = ctx.getText();
         //load the number
         mv.visitLdcInsn(Integer.valueOf(value));
@@ -665,7 +1913,7 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
      */
     @Override
     public Object visitId(KnightCodeParser.IdContext ctx){
-        System.out.println("ID context");
+        trace("ID context");
 
         String id = ctx.getText();
         if( symbolTable.isDeclared(id)) {
@@ -679,45 +1927,41 @@ public class CustomVisitor extends KnightCodeBaseVisitor<Object> implements Opco
     }
 
     /**
-     * Process comparison expression by evaluating both sides and comparing the results
+     * Compares the two integers on the stack and leaves 1 if the comparison holds or 0 if not.  The result is worked out from the sign of Integer.compare without branching, so an expression never splits the code into blocks that need stack map frames
      * 
-     * @param ctx the context of the comparison from the parse tree
+     * @param ctx the context of the comparison operator from the parse tree
      * @return null
      */
     @Override
     public Void visitComp(KnightCodeParser.CompContext ctx){
-        System.out.println("Visiting Comp");
-
-        visit(ctx.getChild(0));
-        visit(ctx.getChild(2));
+        trace("Visiting Comp");
 
-        Label trueLabel = new Label();
-        Label endLabel = new Label();
-
-        //Determins the jump based on the comparison
-        String operator = ctx.getChild(1).getText();
-        switch(operator){
+        //-1, 0 or 1
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "compare", "(II)I", false);
+        switch (ctx.getText()) {
             case ">":
-                mv.visitJumpInsn(Opcodes.IF_ICMPGT, trueLabel);
+                //The sign bit of -compare
+                mv.visitInsn(INEG);
+                mv.visitIntInsn(BIPUSH, 31);
+                mv.visitInsn(IUSHR);
                 break;
             case "<":
-                mv.visitJumpInsn(Opcodes.IF_ICMPLT, trueLabel);
+                //The sign bit of compare
+                mv.visitIntInsn(BIPUSH, 31);
+                mv.visitInsn(IUSHR);
                 break;
             case "=":
-                mv.visitJumpInsn(Opcodes.IF_ICMPEQ, trueLabel);
+                //The low bit of compare is 1 unless the values are equal
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IAND);
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IXOR);
                 break;
             case "<>":
-                mv.visitJumpInsn(Opcodes.IF_ICMPNE, trueLabel);
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IAND);
                 break;
         }
-
-        mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-        mv.visitLabel(trueLabel);
-        mv.visitLdcInsn(1);
-        mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-        mv.visitLabel(endLabel);
-        mv.visitLdcInsn(0);
-
         return null;
     }
 
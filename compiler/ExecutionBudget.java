@@ -0,0 +1,154 @@
+package compiler;
+
+/**
+* ExecutionBudget Class that meters programs compiled with CustomVisitor.setExecutionBudget, so a program that never stops can't hold a worker forever.
+* A step is one iteration of a WHILE loop.  Each generated method takes its fuel when it starts and keeps it in a local, takes a step of it on each back edge, and only calls charge when the fuel runs out, so the budget is checked once a chunk of steps instead of on every iteration.
+* Before calling an outlined method a method gives its fuel back, and takes it again once the call returns, so the chunk a caller holds is never out of reach of the method it calls.
+* The time budget is checked in charge as well.  With one, the chunk is sized from how long the last one lasted, so charge runs about every CHECK_MILLIS however much work a step is, and a loop never reads the time itself.
+* The budget belongs to the thread running the program, and begins again each time a program's main or run method starts
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public final class ExecutionBudget {
+
+    /** Most steps handed to a method at once.  Large, so with only a step budget the call for more fuel is so rare that HotSpot compiles it as a trap instead of a call in the loop */
+    public static final int CHUNK = 1 << 30;
+
+    /** Steps in the first chunk of a run with a time budget, before charge knows how long a step takes */
+    public static final int FIRST_TIMED_CHUNK = 1 << 10;
+
+    /** Milliseconds a chunk should last under a time budget, which is how late a run can notice it is out of time */
+    public static final int CHECK_MILLIS = 10;
+
+    /** Exit code of a program run from its main that runs out of budget */
+    public static final int EXIT_CODE = 3;
+
+    private static final ThreadLocal<ExecutionBudget> CURRENT = new ThreadLocal<>();
+
+    private final long steps;
+    private final long millis;
+    private final long deadline;
+    private long remaining;
+    private int chunk;
+    private long lastCharge;
+
+    /**
+     * Constructor
+     *
+     * @param steps: the step budget, 0 for no limit
+     * @param millis: the time budget in milliseconds, 0 for no limit
+     */
+    private ExecutionBudget(long steps, long millis) {
+        this.steps = steps;
+        this.millis = millis;
+        this.lastCharge = System.nanoTime();
+        this.deadline = lastCharge + millis * 1000000L;
+        this.remaining = steps > 0 ? steps : Long.MAX_VALUE;
+        this.chunk = millis > 0 ? FIRST_TIMED_CHUNK : CHUNK;
+    }
+
+    /**
+     * Reads a budget given on the command line as steps[,millis]
+     *
+     * @param spec: the step budget, optionally followed by a comma and the time budget in milliseconds, where 0 means no limit
+     * @return the steps and the milliseconds, or null if the text isn't a budget
+     */
+    public static long[] parse(String spec) {
+        if (spec == null || !spec.matches("[0-9]{1,12}(,[0-9]{1,12})?")) {
+            return null;
+        }
+        String[] parts = spec.split(",");
+        return new long[] {Long.parseLong(parts[0]), parts.length > 1 ? Long.parseLong(parts[1]) : 0};
+    }
+
+    /**
+     * Starts the budget of a run on the current thread.  Called at the start of a metered program
+     *
+     * @param steps: the step budget, 0 for no limit
+     * @param millis: the time budget in milliseconds, 0 for no limit
+     */
+    public static void begin(long steps, long millis) {
+        CURRENT.set(new ExecutionBudget(steps, millis));
+    }
+
+    /**
+     * Takes fuel for a method starting, or going on after a call to an outlined method.  No step is taken, so a budget of N steps lets a loop run N times.  With a time budget the time is checked too, since a method that keeps calling out may never run out of fuel
+     *
+     * @return the steps the method may take
+     * @throws BudgetExceededException if the time has run out
+     */
+    public static int take() {
+        ExecutionBudget budget = CURRENT.get();
+        if (budget.millis > 0 && System.nanoTime() - budget.deadline >= 0) {
+            throw new BudgetExceededException("***Execution budget of " + budget.millis + " ms exceeded***");
+        }
+        int fuel = (int) Math.min(budget.chunk, budget.remaining);
+        budget.remaining -= fuel;
+        return fuel;
+    }
+
+    /**
+     * Takes fuel for a method that has used up its own, including the step it is taking
+     *
+     * @return the steps the method may take after this one
+     * @throws BudgetExceededException if the steps or the time have run out
+     */
+    public static int charge() {
+        ExecutionBudget budget = CURRENT.get();
+        if (budget.remaining <= 0) {
+            throw new BudgetExceededException("***Execution budget of " + budget.steps + " steps exceeded***");
+        }
+        if (budget.millis > 0) {
+            budget.time();
+        }
+        int fuel = (int) Math.min(budget.chunk, budget.remaining);
+        budget.remaining -= fuel;
+        return fuel - 1;
+    }
+
+    /**
+     * Checks the time budget and sizes the next chunk so it lasts about CHECK_MILLIS.  A chunk that ran short is doubled, and one that ran long is scaled down at once so a slow loop is not let run on
+     *
+     * @throws BudgetExceededException if the time has run out
+     */
+    private void time() {
+        long now = System.nanoTime();
+        if (now - deadline >= 0) {
+            throw new BudgetExceededException("***Execution budget of " + millis + " ms exceeded***");
+        }
+        long elapsed = now - lastCharge;
+        long target = CHECK_MILLIS * 1000000L;
+        lastCharge = now;
+        if (elapsed < target / 2) {
+            chunk = (int) Math.min(CHUNK, 2L * chunk);
+        }
+        else if (elapsed > 2 * target) {
+            chunk = (int) Math.max(1, chunk * target / elapsed);
+        }
+    }
+
+    /**
+     * Gives back the fuel a method didn't use when it returns or calls an outlined method
+     *
+     * @param fuel: the steps left in the method
+     */
+    public static void refund(int fuel) {
+        CURRENT.get().remaining += fuel;
+    }
+
+    /**
+     * Ends a program run from its main that ran out of budget, after reporting it
+     *
+     * @param e: the exception thrown by charge
+     */
+    public static void exit(BudgetExceededException e) {
+        System.out.flush();
+        System.err.println(e.getMessage());
+        System.exit(EXIT_CODE);
+    }
+
+}
@@ -0,0 +1,42 @@
+package compiler;
+
+/**
+* IOContext Interface for the input and output of one run of a KnightCode program.  Programs compiled with an I/O context READ and PRINT through it instead of System.in and System.out
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public interface IOContext {
+
+    /**
+     * Reads the value of a READ into an INTEGER variable
+     * 
+     * @return the integer read
+     */
+    int readInt();
+
+    /**
+     * Reads the value of a READ into a STRING variable
+     * 
+     * @return the string read
+     */
+    String readString();
+
+    /**
+     * Prints an INTEGER on its own line
+     * 
+     * @param value: the value to print
+     */
+    void print(int value);
+
+    /**
+     * Prints a STRING on its own line
+     * 
+     * @param value: the value to print
+     */
+    void print(String value);
+
+}
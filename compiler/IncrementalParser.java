@@ -0,0 +1,735 @@
+package compiler;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CodePointBuffer;
+import org.antlr.v4.runtime.CodePointCharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import lexparse.KnightCodeLexer;
+import lexparse.KnightCodeParser;
+
+/**
+* IncrementalParser Class that keeps the tokens and parse tree of a program between edits, so watch mode can bring them up to date without lexing and parsing the whole file again.
+* The edit is found by comparing the new text with the old from both ends.  Lexing restarts after the last token whose lookahead stayed before the edit, and stops at the first token it starts where the old lex started one after the edit: the lexer has no modes, so from there on it would find the same tokens again, and the old ones are kept and moved.
+* Parsing restarts at the top-level statement holding the last token before the edit, and stops at the first old top-level statement, or the END of the body, that it reaches after the edit.  The statements in between replace the old ones in the tree.
+* An edit outside the statements of the body, or any lexer or syntax error, falls back to lexing and parsing the whole file the way kcc does, which also reports the errors
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class IncrementalParser {
+
+    private static final TokenFactory<LexedToken> TOKEN_FACTORY = new LexedTokenFactory();
+
+    /** Characters compared at once when looking for the end of an edit */
+    private static final int SUFFIX_BLOCK = 1024;
+
+    private final String sourceName;
+    private int[] text;
+    private List<LexedToken> tokens;
+    private KnightCodeParser.FileContext tree;
+    private boolean syntaxErrors;
+    private boolean fullParse;
+    private boolean treeChanged;
+    private int relexedTokens;
+    private int reparsedStatements;
+
+    /**
+     * Constructor
+     *
+     * @param sourceName: the name of the source, used in error messages
+     */
+    public IncrementalParser(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    /**
+     * Brings the parse tree up to date with a new version of the source.  The tree returned is the same object as before, with the edited statements replaced, unless the whole file had to be parsed again
+     *
+     * @param source: the new text of the program
+     * @return the parse tree of the new text
+     */
+    public KnightCodeParser.FileContext update(String source) {
+        int[] newText = source.codePoints().toArray();
+        if (tree == null || syntaxErrors) {
+            return parseAll(newText);
+        }
+
+        int editStart = Arrays.mismatch(text, newText);
+        if (editStart < 0) {
+            fullParse = false;
+            treeChanged = false;
+            relexedTokens = 0;
+            reparsedStatements = 0;
+            return tree;
+        }
+        //Compare the ends a block at a time, which is vectorized, then narrow down within the block that differs
+        int suffix = 0;
+        int longest = Math.min(text.length, newText.length) - editStart;
+        while (suffix + SUFFIX_BLOCK <= longest && Arrays.equals(text, text.length - suffix - SUFFIX_BLOCK, text.length - suffix, newText, newText.length - suffix - SUFFIX_BLOCK, newText.length - suffix)) {
+            suffix += SUFFIX_BLOCK;
+        }
+        while (suffix < longest && text[text.length - 1 - suffix] == newText[newText.length - 1 - suffix]) {
+            suffix++;
+        }
+
+        try {
+            return reparse(newText, editStart, newText.length - suffix);
+        } catch (ParseCancellationException e) {
+            return parseAll(newText);
+        }
+    }
+
+    /**
+     * Checks whether the last update found syntax errors.  The tree is then only as good as the parser's error recovery, and the next update parses the whole file again
+     *
+     * @return true if the lexer or parser reported an error
+     */
+    public boolean hasErrors() {
+        return syntaxErrors;
+    }
+
+    /**
+     * Checks whether the last update parsed the whole file
+     *
+     * @return true for the first update, an edit outside the body's statements or a fallback after an error
+     */
+    public boolean isFullParse() {
+        return fullParse;
+    }
+
+    /**
+     * Checks whether the last update changed anything code generation reads.  An edit that leaves every token with the same text, line and column, such as one to a comment or to the spaces within a line, doesn't
+     *
+     * @return true if the class has to be generated again
+     */
+    public boolean isTreeChanged() {
+        return treeChanged;
+    }
+
+    /**
+     * Gets the number of tokens the last update lexed
+     *
+     * @return the tokens lexed, all of them after a full parse
+     */
+    public int getRelexedTokens() {
+        return relexedTokens;
+    }
+
+    /**
+     * Gets the number of top-level statements the last update parsed
+     *
+     * @return the statements parsed, all of them after a full parse
+     */
+    public int getReparsedStatements() {
+        return reparsedStatements;
+    }
+
+    /**
+     * Gets the number of top-level statements in the body
+     *
+     * @return the statements of the current tree
+     */
+    public int getStatements() {
+        return tree.body().getChildCount() - 2;
+    }
+
+    /**
+     * Lexes and parses the whole file, reporting errors on the console like kcc
+     *
+     * @param newText: the text of the program
+     * @return the parse tree
+     */
+    private KnightCodeParser.FileContext parseAll(int[] newText) {
+        TrackingCharStream input = new TrackingCharStream(charStream(newText), 0, -1);
+        KnightCodeLexer lexer = new KnightCodeLexer(input);
+        lexer.setTokenFactory(TOKEN_FACTORY);
+        int[] firstLexerError = {Integer.MAX_VALUE};
+        lexer.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+                firstLexerError[0] = Math.min(firstLexerError[0], lexer.getCharIndex());
+            }
+        });
+
+        List<LexedToken> all = new ArrayList<>();
+        LexedToken token;
+        do {
+            token = next(lexer, input);
+            all.add(token);
+        } while (token.getType() != Token.EOF);
+
+        KnightCodeParser parser = new KnightCodeParser(new CommonTokenStream(new ListTokenSource(all)));
+        KnightCodeParser.FileContext file = kcc.parse(parser);
+        //The parser stops at END, so like kcc ignore anything the lexer didn't like after it
+        syntaxErrors = parser.getNumberOfSyntaxErrors() > 0 || file.getStop() == null || firstLexerError[0] <= file.getStop().getStopIndex();
+        for (LexedToken lexed : all) {
+            lexed.detach();
+        }
+
+        text = newText;
+        tokens = all;
+        tree = file;
+        fullParse = true;
+        treeChanged = true;
+        relexedTokens = all.size();
+        reparsedStatements = syntaxErrors ? 0 : getStatements();
+        return file;
+    }
+
+    /**
+     * Lexes and parses again only around an edit
+     *
+     * @param newText: the new text of the program
+     * @param editStart: the first character that differs
+     * @param editEnd: the end of the replacement in the new text, from where the old and new text are the same
+     * @return the updated tree
+     * @throws ParseCancellationException if the edit can't be handled here and the whole file has to be parsed
+     */
+    private KnightCodeParser.FileContext reparse(int[] newText, int editStart, int editEnd) {
+        int delta = newText.length - text.length;
+        int last = lastTokenBefore(editStart);
+        if (last < 0) {
+            throw new ParseCancellationException("edit in the first token");
+        }
+
+        //Restart the lexer just after the last token that never looked at the edit, where it started afresh before
+        LexedToken before = tokens.get(last);
+        int restart = before.getStopIndex() + 1;
+        TrackingCharStream input = new TrackingCharStream(charStream(newText), restart, before.reach);
+        KnightCodeLexer lexer = new KnightCodeLexer(input);
+        lexer.setTokenFactory(TOKEN_FACTORY);
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+                throw new ParseCancellationException(msg);
+            }
+        });
+        String beforeText = before.getText();
+        int newline = beforeText.lastIndexOf('\n');
+        lexer.setLine(before.getLine() + (int) beforeText.chars().filter(c -> c == '\n').count());
+        //Columns count code points, as the lexer does
+        lexer.setCharPositionInLine(newline < 0 ? before.getCharPositionInLine() + beforeText.codePointCount(0, beforeText.length()) : beforeText.codePointCount(newline + 1, beforeText.length()));
+
+        List<LexedToken> fresh = new ArrayList<>();
+        LexedToken sync;
+        int resume;
+        while (true) {
+            LexedToken token = next(lexer, input);
+            resume = token.getStartIndex() >= editEnd ? tokenStartingAt(token.getStartIndex() - delta, last + 1) : -1;
+            if (resume >= 0) {
+                sync = token;
+                break;
+            }
+            if (token.getType() == Token.EOF) {
+                throw new ParseCancellationException("no token to resume at");
+            }
+            token.detach();
+            fresh.add(token);
+        }
+        List<LexedToken> removed = new ArrayList<>(tokens.subList(last + 1, resume));
+        relexedTokens = fresh.size();
+
+        //Move the tokens after the edit.  Only those on the line the edit ends on change column
+        LexedToken resumed = tokens.get(resume);
+        int lineDelta = sync.getLine() - resumed.getLine();
+        int columnDelta = sync.getCharPositionInLine() - resumed.getCharPositionInLine();
+        int editLine = resumed.getLine();
+        if (delta != 0 || lineDelta != 0 || columnDelta != 0) {
+            for (int i = resume; i < tokens.size(); i++) {
+                LexedToken token = tokens.get(i);
+                if (token.getLine() == editLine) {
+                    token.setCharPositionInLine(token.getCharPositionInLine() + columnDelta);
+                }
+                token.setLine(token.getLine() + lineDelta);
+                token.move(delta);
+            }
+        }
+
+        if (sameTokens(removed, fresh)) {
+            //Only spaces, comments or the layout changed, so the tree stands and its tokens just move
+            treeChanged = lineDelta != 0 || columnDelta != 0;
+            for (int i = 0; i < fresh.size(); i++) {
+                treeChanged |= removed.get(i).getLine() != fresh.get(i).getLine() || removed.get(i).getCharPositionInLine() != fresh.get(i).getCharPositionInLine();
+                removed.get(i).moveTo(fresh.get(i));
+            }
+            text = newText;
+            fullParse = false;
+            reparsedStatements = 0;
+            return tree;
+        }
+
+        //Find the statements around the edit while the tokens still have their old indexes
+        KnightCodeParser.BodyContext body = tree.body();
+        List<ParseTree> children = body.children;
+        int end = children.size() - 1;
+        int first = statementHolding(children, last);
+        int kept = firstStatementFrom(children, resume);
+        if (first < 0 || tokenIndex(children.get(end)) < resume) {
+            throw new ParseCancellationException("edit outside the body");
+        }
+
+        tokens.subList(last + 1, resume).clear();
+        tokens.addAll(last + 1, fresh);
+        for (int i = last + 1; i < tokens.size(); i++) {
+            tokens.get(i).setTokenIndex(i);
+        }
+
+        //Parse statements from the first one around the edit until one starts where an old statement after the edit does
+        TokenListStream stream = new TokenListStream(tokens, tokenIndex(children.get(first)));
+        KnightCodeParser parser = new KnightCodeParser(stream);
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        List<ParseTree> stats = new ArrayList<>();
+        while (true) {
+            int position = stream.index();
+            while (kept < end && tokenIndex(children.get(kept)) < position) {
+                kept++;
+            }
+            if (tokenIndex(children.get(kept)) == position) {
+                break;
+            }
+            if (position > tokenIndex(children.get(end))) {
+                throw new ParseCancellationException("statement ran past END");
+            }
+            stats.add(parser.stat());
+        }
+        if (children.size() - (kept - first) + stats.size() == 2) {
+            throw new ParseCancellationException("empty body");
+        }
+
+        List<ParseTree> replaced = children.subList(first, kept);
+        replaced.clear();
+        replaced.addAll(stats);
+        for (ParseTree stat : stats) {
+            ((ParserRuleContext) stat).setParent(body);
+        }
+
+        text = newText;
+        fullParse = false;
+        treeChanged = true;
+        reparsedStatements = stats.size();
+        return tree;
+    }
+
+    /**
+     * Lexes the next token and records how far the lexer has looked
+     *
+     * @param lexer: the lexer
+     * @param input: the lexer's input
+     * @return the token
+     */
+    private static LexedToken next(KnightCodeLexer lexer, TrackingCharStream input) {
+        LexedToken token = (LexedToken) lexer.nextToken();
+        token.reach = input.reach;
+        return token;
+    }
+
+    /**
+     * Finds the last token, other than EOF, whose lexing looked only at characters before a position.  The reach of the tokens only grows, so this is a binary search
+     *
+     * @param position: the first changed character
+     * @return the index of the token, or -1 if there is none
+     */
+    private int lastTokenBefore(int position) {
+        int low = 0;
+        int high = tokens.size() - 2;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (tokens.get(middle).reach < position) {
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Finds the old token that starts at a character
+     *
+     * @param start: the character in the old text
+     * @param from: the first token index to look at
+     * @return the index of the token, or -1 if no token starts there
+     */
+    private int tokenStartingAt(int start, int from) {
+        int low = from;
+        int high = tokens.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleStart = tokens.get(middle).getStartIndex();
+            if (middleStart < start) {
+                low = middle + 1;
+            }
+            else if (middleStart > start) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the top-level statement that holds a token
+     *
+     * @param children: the children of the body, BEGIN, the statements and END
+     * @param index: the index of the token
+     * @return the position of the statement among the children, or -1 if the token is outside the statements
+     */
+    private static int statementHolding(List<ParseTree> children, int index) {
+        int low = 1;
+        int high = children.size() - 2;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (tokenIndex(children.get(middle)) <= index) {
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return high >= 1 && ((ParserRuleContext) children.get(high)).getStop().getTokenIndex() >= index ? high : -1;
+    }
+
+    /**
+     * Finds the first top-level statement that starts at or after a token
+     *
+     * @param children: the children of the body, BEGIN, the statements and END
+     * @param index: the index of the token
+     * @return the position of the statement among the children, or that of END if there is none
+     */
+    private static int firstStatementFrom(List<ParseTree> children, int index) {
+        int low = 1;
+        int high = children.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokenIndex(children.get(middle)) < index) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets the index of the first token of a statement, or of the END of the body
+     *
+     * @param child: a child of the body
+     * @return the token index
+     */
+    private static int tokenIndex(ParseTree child) {
+        return child instanceof ParserRuleContext ? ((ParserRuleContext) child).getStart().getTokenIndex() : ((TerminalNode) child).getSymbol().getTokenIndex();
+    }
+
+    /**
+     * Checks whether two runs of tokens have the same types and text
+     *
+     * @param removed: the old tokens
+     * @param fresh: the new tokens
+     * @return true if the parser would see no difference
+     */
+    private static boolean sameTokens(List<LexedToken> removed, List<LexedToken> fresh) {
+        if (removed.size() != fresh.size()) {
+            return false;
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            if (removed.get(i).getType() != fresh.get(i).getType() || !removed.get(i).getText().equals(fresh.get(i).getText())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wraps text in a character stream indexed by code point, like the one kcc.readSource makes, so token positions and columns match a full compile
+     *
+     * @param codePoints: the text
+     * @return the stream
+     */
+    private CharStream charStream(int[] codePoints) {
+        return CodePointCharStream.fromBuffer(CodePointBuffer.withInts(IntBuffer.wrap(codePoints)), sourceName);
+    }
+
+    /**
+     * A token that keeps its own text, so it outlives the text it was lexed from, and how far the lexer looked to find it
+     */
+    private static class LexedToken extends CommonToken {
+        private static final long serialVersionUID = 1L;
+
+        private int reach;
+
+        LexedToken(Pair<TokenSource, CharStream> source, int type, int channel, int start, int stop) {
+            super(source, type, channel, start, stop);
+        }
+
+        LexedToken(int type, String text) {
+            super(EMPTY_SOURCE, type, DEFAULT_CHANNEL, -1, -1);
+            setText(text);
+        }
+
+        /**
+         * Drops the lexer and the text the token came from
+         */
+        void detach() {
+            source = EMPTY_SOURCE;
+        }
+
+        /**
+         * Moves the token along the text
+         *
+         * @param delta: the number of characters to move by
+         */
+        void move(int delta) {
+            start += delta;
+            stop += delta;
+            reach += delta;
+        }
+
+        /**
+         * Takes the position of a token lexed from the new text with the same type and text
+         *
+         * @param lexed: the new token
+         */
+        void moveTo(LexedToken lexed) {
+            start = lexed.start;
+            stop = lexed.stop;
+            reach = lexed.reach;
+            line = lexed.line;
+            charPositionInLine = lexed.charPositionInLine;
+        }
+    }
+
+    /**
+     * Creates LexedTokens with their text copied out of the input
+     */
+    private static class LexedTokenFactory implements TokenFactory<LexedToken> {
+
+        @Override
+        public LexedToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start, int stop, int line, int charPositionInLine) {
+            LexedToken token = new LexedToken(source, type, channel, start, stop);
+            token.setLine(line);
+            token.setCharPositionInLine(charPositionInLine);
+            if (text != null) {
+                token.setText(text);
+            }
+            else if (type != Token.EOF) {
+                token.setText(source.b.getText(Interval.of(start, stop)));
+            }
+            return token;
+        }
+
+        @Override
+        public LexedToken create(int type, String text) {
+            return new LexedToken(type, text);
+        }
+    }
+
+    /**
+     * A token stream over the token list as it is, numbered already, so parsing can start in the middle without the list being copied into a CommonTokenStream up to there
+     */
+    private static class TokenListStream implements TokenStream {
+        private final List<LexedToken> tokens;
+        private int index;
+
+        /**
+         * Constructor
+         *
+         * @param tokens: the tokens, ending with EOF
+         * @param index: the index of the first token to parse
+         */
+        TokenListStream(List<LexedToken> tokens, int index) {
+            this.tokens = tokens;
+            this.index = index;
+        }
+
+        @Override
+        public Token LT(int k) {
+            if (k == 0) {
+                return null;
+            }
+            int i = k > 0 ? index + k - 1 : index + k;
+            return i < 0 ? null : tokens.get(Math.min(i, tokens.size() - 1));
+        }
+
+        @Override
+        public int LA(int i) {
+            Token token = LT(i);
+            return token != null ? token.getType() : Token.INVALID_TYPE;
+        }
+
+        @Override
+        public Token get(int i) {
+            return tokens.get(i);
+        }
+
+        @Override
+        public void consume() {
+            if (LA(1) == Token.EOF) {
+                throw new IllegalStateException("cannot consume EOF");
+            }
+            index++;
+        }
+
+        @Override
+        public int mark() {
+            return -1;
+        }
+
+        @Override
+        public void release(int marker) {
+        }
+
+        @Override
+        public int index() {
+            return index;
+        }
+
+        @Override
+        public void seek(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int size() {
+            return tokens.size();
+        }
+
+        @Override
+        public TokenSource getTokenSource() {
+            return null;
+        }
+
+        @Override
+        public String getSourceName() {
+            return IntStream.UNKNOWN_SOURCE_NAME;
+        }
+
+        @Override
+        public String getText(Interval interval) {
+            StringBuilder text = new StringBuilder();
+            for (int i = Math.max(0, interval.a); i <= interval.b && i < tokens.size() - 1; i++) {
+                text.append(tokens.get(i).getText());
+            }
+            return text.toString();
+        }
+
+        @Override
+        public String getText() {
+            return getText(Interval.of(0, tokens.size() - 1));
+        }
+
+        @Override
+        public String getText(RuleContext ctx) {
+            return getText(ctx.getSourceInterval());
+        }
+
+        @Override
+        public String getText(Token start, Token stop) {
+            return start != null && stop != null ? getText(Interval.of(start.getTokenIndex(), stop.getTokenIndex())) : "";
+        }
+    }
+
+    /**
+     * A character stream that records the furthest character the lexer has looked at
+     */
+    private static class TrackingCharStream implements CharStream {
+        private final CharStream input;
+        private int reach;
+
+        /**
+         * Constructor
+         *
+         * @param input: the stream to read
+         * @param start: the character to start lexing at
+         * @param reach: the furthest character already looked at
+         */
+        TrackingCharStream(CharStream input, int start, int reach) {
+            this.input = input;
+            this.reach = reach;
+            input.seek(start);
+        }
+
+        @Override
+        public int LA(int i) {
+            if (i > 0) {
+                reach = Math.max(reach, input.index() + i - 1);
+            }
+            return input.LA(i);
+        }
+
+        @Override
+        public void consume() {
+            input.consume();
+        }
+
+        @Override
+        public int mark() {
+            return input.mark();
+        }
+
+        @Override
+        public void release(int marker) {
+            input.release(marker);
+        }
+
+        @Override
+        public int index() {
+            return input.index();
+        }
+
+        @Override
+        public void seek(int index) {
+            input.seek(index);
+        }
+
+        @Override
+        public int size() {
+            return input.size();
+        }
+
+        @Override
+        public String getSourceName() {
+            return input.getSourceName();
+        }
+
+        @Override
+        public String getText(Interval interval) {
+            return input.getText(interval);
+        }
+    }
+
+}
@@ -0,0 +1,593 @@
+package compiler;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import lexparse.KnightCodeParser;
+
+/**
+* Interpreter Class that runs a KnightCode program straight from its parse tree so short scripts start without generating and loading a class.
+* The tree is first resolved into small nodes working on primitive int slots, then executed.  Each WHILE loop counts its back-edges and once it is hot the rest of the loop is compiled through CustomVisitor and run as bytecode
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class Interpreter {
+
+    /** Default number of back-edges a loop takes in the interpreter before it is compiled */
+    public static final int HOT_LOOP_THRESHOLD = 1000;
+
+    private final KnightCodeParser.FileContext file;
+    private final SymbolTable symbolTable;
+    private final Stmt[] body;
+    private final int[] ints;
+    private final String[] strings;
+    private final PrintStream out;
+    private final IOContext io;
+    private ByteClassLoader loader;
+    private int hotLoopThreshold;
+    private int compiledLoops;
+
+    /**
+     * Constructor that resolves the parse tree, giving each variable a slot in the int or string array by declaration order
+     *
+     * @param file: the parse tree of the program
+     * @throws RuntimeException if the program uses a variable that isn't declared
+     */
+    public Interpreter(KnightCodeParser.FileContext file) {
+        this.file = file;
+        this.symbolTable = new SymbolTable();
+        this.symbolTable.setVerbose(false);
+        this.out = System.out;
+        this.io = new StreamIOContext(System.in, out);
+        this.hotLoopThreshold = HOT_LOOP_THRESHOLD;
+
+        int count = 0;
+        for (KnightCodeParser.VariableContext varCtx : file.declare().variable()) {
+            String varName = varCtx.identifier().ID().getText();
+            if (symbolTable.isDeclared(varName)) {
+                System.out.println("***Variable '" + varName + "' already declared.***");
+                continue;
+            }
+            try {
+                symbolTable.declareVariable(varName, varCtx.vartype().getText(), null);
+            } catch (Exception e) {
+                throw new RuntimeException(e.getMessage());
+            }
+            count++;
+        }
+        ints = new int[count];
+        strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = "";
+        }
+
+        body = resolveAll(file.body().stat());
+    }
+
+    /**
+     * Sets how many back-edges a loop takes before it is compiled, 0 compiles every loop on its first iteration
+     *
+     * @param hotLoopThreshold: the number of back-edges
+     */
+    public void setHotLoopThreshold(int hotLoopThreshold) {
+        this.hotLoopThreshold = hotLoopThreshold;
+    }
+
+    /**
+     * Runs the program
+     */
+    public void run() {
+        execAll(body);
+        out.flush();
+    }
+
+    /**
+     * Gets the number of loops that were compiled to bytecode during the run
+     *
+     * @return the number of compiled loops
+     */
+    public int getCompiledLoops() {
+        return compiledLoops;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    // Resolving the parse tree
+    //---------------------------------------------------------------------------------------------
+
+    /**
+     * Resolves a list of statements
+     *
+     * @param stats: the statement contexts
+     * @return the resolved statements
+     */
+    private Stmt[] resolveAll(List<KnightCodeParser.StatContext> stats) {
+        Stmt[] resolved = new Stmt[stats.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            resolved[i] = resolve(stats.get(i));
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolves a single statement
+     *
+     * @param ctx: the statement context
+     * @return the resolved statement
+     */
+    private Stmt resolve(KnightCodeParser.StatContext ctx) {
+        if (ctx.setvar() != null) {
+            KnightCodeParser.SetvarContext set = ctx.setvar();
+            Variable var = lookup(set.ID().getText());
+            if (set.STRING() != null) {
+                return new SetString(var.getIndex(), unquote(set.STRING().getText()));
+            }
+            Expr value = resolve(set.expr());
+            if (!var.isInt()) {
+                throw new RuntimeException("***Variable '" + var.getName() + "' is not an INTEGER.***");
+            }
+            return new SetInt(var.getIndex(), value);
+        }
+        if (ctx.expr() != null) {
+            return new Evaluate(resolve(ctx.expr()));
+        }
+        if (ctx.print() != null) {
+            KnightCodeParser.PrintContext print = ctx.print();
+            if (print.STRING() != null) {
+                return new PrintText(unquote(print.STRING().getText()));
+            }
+            Variable var = lookup(print.ID().getText());
+            return var.isInt() ? new PrintInt(var.getIndex()) : new PrintString(var.getIndex());
+        }
+        if (ctx.read() != null) {
+            Variable var = lookup(ctx.read().ID().getText());
+            return new Read(var.getIndex(), var.isInt());
+        }
+        if (ctx.decision() != null) {
+            KnightCodeParser.DecisionContext decision = ctx.decision();
+            List<KnightCodeParser.StatContext> thenStats = new ArrayList<>();
+            List<KnightCodeParser.StatContext> elseStats = new ArrayList<>();
+            List<KnightCodeParser.StatContext> current = thenStats;
+            for (ParseTree child : decision.children) {
+                if ("ELSE".equals(child.getText())) {
+                    current = elseStats;
+                }
+                else if (child instanceof KnightCodeParser.StatContext) {
+                    current.add((KnightCodeParser.StatContext) child);
+                }
+            }
+            return new Decision(condition(decision), resolveAll(thenStats), resolveAll(elseStats));
+        }
+        KnightCodeParser.LoopContext loop = ctx.loop();
+        return new Loop(loop, condition(loop), resolveAll(loop.stat()), !containsRead(loop));
+    }
+
+    /**
+     * Resolves an expression
+     *
+     * @param ctx: the expression context
+     * @return the resolved expression
+     */
+    private Expr resolve(KnightCodeParser.ExprContext ctx) {
+        if (ctx instanceof KnightCodeParser.ParenthesisContext) {
+            return resolve(((KnightCodeParser.ParenthesisContext) ctx).expr());
+        }
+        if (ctx instanceof KnightCodeParser.NumberContext) {
+            return new Const(Integer.parseInt(ctx.getText()));
+        }
+        if (ctx instanceof KnightCodeParser.IdContext) {
+            return load(ctx.getText());
+        }
+        Expr left = resolve((KnightCodeParser.ExprContext) ctx.getChild(0));
+        Expr right = resolve((KnightCodeParser.ExprContext) ctx.getChild(2));
+        return new Binary(ctx.getChild(1).getText(), left, right);
+    }
+
+    /**
+     * Resolves the condition of an IF or WHILE, found in children 1 to 3 of its context
+     *
+     * @param ctx: the decision or loop context
+     * @return the condition as a comparison expression
+     */
+    private Expr condition(ParserRuleContext ctx) {
+        return new Binary(ctx.getChild(2).getText(), operand(ctx.getChild(1).getText()), operand(ctx.getChild(3).getText()));
+    }
+
+    /**
+     * Resolves a NUMBER or ID operand of a condition
+     *
+     * @param text: the text of the operand
+     * @return the resolved operand
+     */
+    private Expr operand(String text) {
+        if (symbolTable.isDeclared(text)) {
+            return load(text);
+        }
+        try {
+            return new Const(Integer.parseInt(text));
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("***Variable '" + text + "' not found.***");
+        }
+    }
+
+    /**
+     * Resolves a read of an INTEGER variable
+     *
+     * @param varName: the name of the variable
+     * @return the resolved load
+     */
+    private Expr load(String varName) {
+        Variable var = lookup(varName);
+        if (!var.isInt()) {
+            throw new RuntimeException("***Variable '" + varName + "' is not an INTEGER.***");
+        }
+        return new Load(var.getIndex());
+    }
+
+    /**
+     * Looks up a declared variable
+     *
+     * @param varName: the name of the variable
+     * @return the variable
+     * @throws RuntimeException if the variable isn't declared
+     */
+    private Variable lookup(String varName) {
+        Variable var = symbolTable.getVariable(varName);
+        if (var == null) {
+            throw new RuntimeException("***Variable '" + varName + "' not found.***");
+        }
+        return var;
+    }
+
+    /**
+     * Checks whether a subtree contains a READ.  Loops that read stay in the interpreter since compiled code reads System.in through its own Scanner
+     *
+     * @param tree: the subtree to check
+     * @return true if there is a READ in the subtree
+     */
+    private static boolean containsRead(ParseTree tree) {
+        if (tree instanceof KnightCodeParser.ReadContext) {
+            return true;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (containsRead(tree.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Strips the quotes and escapes from a STRING literal the same way CustomVisitor does
+     *
+     * @param text: the literal including its quotes
+     * @return the string value
+     */
+    private static String unquote(String text) {
+        return text.substring(1, text.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+    }
+
+    //---------------------------------------------------------------------------------------------
+    // Execution
+    //---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes a list of statements in order
+     *
+     * @param stats: the statements
+     */
+    private void execAll(Stmt[] stats) {
+        for (Stmt stat : stats) {
+            stat.exec(this);
+        }
+    }
+
+    /**
+     * Compiles a hot loop to a class of its own and looks up its run method
+     *
+     * @param loop: the loop to compile
+     * @return the handle of the compiled loop, or null if it could not be compiled
+     */
+    private MethodHandle compile(KnightCodeParser.LoopContext loop) {
+        String className = "output/" + file.ID().getText() + "$Loop" + compiledLoops;
+        try {
+            CustomVisitor visitor = new CustomVisitor();
+            visitor.setVerbose(false);
+            visitor.setSourceFile(Paths.get(file.getStart().getTokenSource().getSourceName()).getFileName().toString());
+            byte[] code = visitor.compileLoop(className, file.declare(), loop);
+            if (loader == null) {
+                loader = new ByteClassLoader(Interpreter.class.getClassLoader());
+            }
+            Class<?> type = loader.define(className, code);
+            MethodHandle handle = MethodHandles.publicLookup().findStatic(type, CustomVisitor.LOOP_METHOD, MethodType.methodType(void.class, int[].class, String[].class));
+            compiledLoops++;
+            return handle;
+        } catch (RuntimeException | LinkageError | ReflectiveOperationException e) {
+            //Code the backend can't handle keeps running in the interpreter
+            return null;
+        }
+    }
+
+    /**
+     * Runs a compiled loop on the current variables
+     *
+     * @param handle: the handle of the compiled loop
+     */
+    private void runCompiled(MethodHandle handle) {
+        try {
+            handle.invokeExact(ints, strings);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A resolved statement
+     */
+    private abstract static class Stmt {
+        abstract void exec(Interpreter it);
+    }
+
+    /**
+     * A resolved integer expression
+     */
+    private abstract static class Expr {
+        abstract int eval(int[] ints);
+    }
+
+    /**
+     * An integer literal
+     */
+    private static final class Const extends Expr {
+        private final int value;
+
+        Const(int value) {
+            this.value = value;
+        }
+
+        int eval(int[] ints) {
+            return value;
+        }
+    }
+
+    /**
+     * A read of an INTEGER variable
+     */
+    private static final class Load extends Expr {
+        private final int slot;
+
+        Load(int slot) {
+            this.slot = slot;
+        }
+
+        int eval(int[] ints) {
+            return ints[slot];
+        }
+    }
+
+    /**
+     * An arithmetic operation or a comparison, which gives 1 when true and 0 when false
+     */
+    private static final class Binary extends Expr {
+        private final char op;
+        private final Expr left;
+        private final Expr right;
+
+        Binary(String op, Expr left, Expr right) {
+            //<> is the only two character operator
+            this.op = "<>".equals(op) ? '!' : op.charAt(0);
+            this.left = left;
+            this.right = right;
+        }
+
+        int eval(int[] ints) {
+            int l = left.eval(ints);
+            int r = right.eval(ints);
+            switch (op) {
+                case '+':
+                    return l + r;
+                case '-':
+                    return l - r;
+                case '*':
+                    return l * r;
+                case '/':
+                    return l / r;
+                case '>':
+                    return l > r ? 1 : 0;
+                case '<':
+                    return l < r ? 1 : 0;
+                case '=':
+                    return l == r ? 1 : 0;
+                default:
+                    return l != r ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * SET of an INTEGER variable
+     */
+    private static final class SetInt extends Stmt {
+        private final int slot;
+        private final Expr value;
+
+        SetInt(int slot, Expr value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        void exec(Interpreter it) {
+            it.ints[slot] = value.eval(it.ints);
+        }
+    }
+
+    /**
+     * SET of a STRING variable to a literal
+     */
+    private static final class SetString extends Stmt {
+        private final int slot;
+        private final String value;
+
+        SetString(int slot, String value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        void exec(Interpreter it) {
+            it.strings[slot] = value;
+        }
+    }
+
+    /**
+     * An expression used as a statement, evaluated for its errors only
+     */
+    private static final class Evaluate extends Stmt {
+        private final Expr value;
+
+        Evaluate(Expr value) {
+            this.value = value;
+        }
+
+        void exec(Interpreter it) {
+            value.eval(it.ints);
+        }
+    }
+
+    /**
+     * PRINT of a string literal
+     */
+    private static final class PrintText extends Stmt {
+        private final String text;
+
+        PrintText(String text) {
+            this.text = text;
+        }
+
+        void exec(Interpreter it) {
+            it.io.print(text);
+        }
+    }
+
+    /**
+     * PRINT of an INTEGER variable
+     */
+    private static final class PrintInt extends Stmt {
+        private final int slot;
+
+        PrintInt(int slot) {
+            this.slot = slot;
+        }
+
+        void exec(Interpreter it) {
+            it.io.print(it.ints[slot]);
+        }
+    }
+
+    /**
+     * PRINT of a STRING variable
+     */
+    private static final class PrintString extends Stmt {
+        private final int slot;
+
+        PrintString(int slot) {
+            this.slot = slot;
+        }
+
+        void exec(Interpreter it) {
+            it.io.print(it.strings[slot]);
+        }
+    }
+
+    /**
+     * READ into a variable
+     */
+    private static final class Read extends Stmt {
+        private final int slot;
+        private final boolean isInt;
+
+        Read(int slot, boolean isInt) {
+            this.slot = slot;
+            this.isInt = isInt;
+        }
+
+        void exec(Interpreter it) {
+            if (isInt) {
+                it.ints[slot] = it.io.readInt();
+            }
+            else {
+                it.strings[slot] = it.io.readString();
+            }
+        }
+    }
+
+    /**
+     * IF with an optional ELSE
+     */
+    private static final class Decision extends Stmt {
+        private final Expr condition;
+        private final Stmt[] thenStats;
+        private final Stmt[] elseStats;
+
+        Decision(Expr condition, Stmt[] thenStats, Stmt[] elseStats) {
+            this.condition = condition;
+            this.thenStats = thenStats;
+            this.elseStats = elseStats;
+        }
+
+        void exec(Interpreter it) {
+            it.execAll(condition.eval(it.ints) != 0 ? thenStats : elseStats);
+        }
+    }
+
+    /**
+     * WHILE loop that counts its back-edges and switches to compiled code once it is hot
+     */
+    private static final class Loop extends Stmt {
+        private final KnightCodeParser.LoopContext ctx;
+        private final Expr condition;
+        private final Stmt[] body;
+        private boolean compilable;
+        private int backEdges;
+        private MethodHandle compiled;
+
+        Loop(KnightCodeParser.LoopContext ctx, Expr condition, Stmt[] body, boolean compilable) {
+            this.ctx = ctx;
+            this.condition = condition;
+            this.body = body;
+            this.compilable = compilable;
+        }
+
+        void exec(Interpreter it) {
+            if (compiled != null) {
+                it.runCompiled(compiled);
+                return;
+            }
+            while (condition.eval(it.ints) != 0) {
+                it.execAll(body);
+                if (compilable && ++backEdges >= it.hotLoopThreshold) {
+                    compiled = it.compile(ctx);
+                    compilable = compiled != null;
+                    if (compiled != null) {
+                        //The compiled loop starts at the condition, so it picks up from the next iteration
+                        it.runCompiled(compiled);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+}
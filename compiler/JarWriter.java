@@ -0,0 +1,181 @@
+package compiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* JarWriter Class that packages compiled programs into one JAR instead of a loose class file per program.  The classes are written through a zip file system along with the runtime support classes the generated code calls, and the finished JAR is forced to disk once.
+* It can also dump an AppCDS archive of the JAR, so a program launched with it skips parsing and verifying its classes
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class JarWriter {
+
+    /** Support classes the generated code can call, copied into every JAR.  None of them has an anonymous class, so every class they load is listed by a name that doesn't depend on their layout */
+    public static final String[] RUNTIME_CLASSES = {"compiler/IOContext", "compiler/StreamIOContext", "compiler/ProfileReport", "compiler/ProfileReport$HottestFirst", "compiler/BranchProfile", "compiler/ExecutionBudget", "compiler/BudgetExceededException"};
+
+    private final Path jarFile;
+    private final Map<String, byte[]> classes;
+
+    /**
+     * Constructor
+     *
+     * @param jarFile: the path of the JAR to write
+     */
+    public JarWriter(Path jarFile) {
+        this.jarFile = jarFile.toAbsolutePath();
+        this.classes = new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds a compiled class to the JAR
+     *
+     * @param internalName: the internal name of the class, for example output/Program1
+     * @param code: the bytecode of the class
+     * @throws RuntimeException if a class with the same name was already added
+     */
+    public void add(String internalName, byte[] code) {
+        if (classes.putIfAbsent(internalName, code) != null) {
+            throw new RuntimeException("***Duplicate class '" + internalName + "' in " + jarFile.getFileName() + "***");
+        }
+    }
+
+    /**
+     * Gets the internal names of the classes added so far
+     *
+     * @return the class names in the order they were added
+     */
+    public List<String> getClassNames() {
+        return new ArrayList<>(classes.keySet());
+    }
+
+    /**
+     * Writes the manifest, the runtime classes and every added class to the JAR, replacing any existing file.  Entries are stored uncompressed so loading a class doesn't inflate it, and the JAR is forced to disk once when it is complete
+     *
+     * @throws IOException if the JAR can't be written
+     */
+    public void write() throws IOException {
+        Files.deleteIfExists(jarFile);
+
+        Map<String, Object> env = new HashMap<>();
+        env.put("create", "true");
+        env.put("noCompression", "true");
+        try (FileSystem jar = FileSystems.newFileSystem(URI.create("jar:" + jarFile.toUri()), env)) {
+            Files.createDirectories(jar.getPath("META-INF"));
+            Files.write(jar.getPath("META-INF", "MANIFEST.MF"), manifest().getBytes(StandardCharsets.UTF_8));
+
+            for (String name : RUNTIME_CLASSES) {
+                writeEntry(jar, name, runtimeClass(name));
+            }
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                writeEntry(jar, entry.getKey(), entry.getValue());
+            }
+        }
+
+        //The zip file system only writes the JAR when it is closed, so one fsync covers every entry
+        try (FileChannel channel = FileChannel.open(jarFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Dumps a static AppCDS archive of the JAR next to it, with the same name ending in .jsa.  The class list is the JDK's default one plus every class in the JAR, so the archive replaces the default JDK archive without losing it.
+     * Launch a program with -XX:SharedArchiveFile=<archive> and the absolute path of the JAR as the class path, which must match the path the archive was dumped with
+     *
+     * @return the path of the archive
+     * @throws IOException if the JAR hasn't been written or the dump fails
+     * @throws InterruptedException if interrupted while waiting for the dump
+     */
+    public Path writeArchive() throws IOException, InterruptedException {
+        String name = jarFile.getFileName().toString();
+        Path archive = jarFile.resolveSibling((name.endsWith(".jar") ? name.substring(0, name.length() - 4) : name) + ".jsa");
+        Path classList = Files.createTempFile("kcc", ".classlist");
+        try {
+            List<String> lines = new ArrayList<>();
+            Path jdkClassList = Path.of(System.getProperty("java.home"), "lib", "classlist");
+            if (Files.exists(jdkClassList)) {
+                lines.addAll(Files.readAllLines(jdkClassList, StandardCharsets.UTF_8));
+            }
+            for (String runtimeClass : RUNTIME_CLASSES) {
+                lines.add(runtimeClass);
+            }
+            lines.addAll(classes.keySet());
+            Files.write(classList, lines, StandardCharsets.UTF_8);
+
+            Process dump = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xshare:dump", "-XX:SharedClassListFile=" + classList, "-XX:SharedArchiveFile=" + archive,
+                "-cp", jarFile.toString()).redirectErrorStream(true).start();
+            byte[] log = dump.getInputStream().readAllBytes();
+            if (dump.waitFor() != 0) {
+                System.err.write(log);
+                throw new IOException("***CDS dump of " + name + " failed***");
+            }
+            return archive;
+        } finally {
+            Files.deleteIfExists(classList);
+        }
+    }
+
+    /**
+     * Builds the manifest, naming the program as the main class when the JAR holds just one
+     *
+     * @return the text of the manifest
+     */
+    private String manifest() {
+        StringBuilder manifest = new StringBuilder("Manifest-Version: 1.0\r\nCreated-By: kcc\r\n");
+        if (classes.size() == 1) {
+            manifest.append("Main-Class: ").append(classes.keySet().iterator().next().replace('/', '.')).append("\r\n");
+        }
+        return manifest.append("\r\n").toString();
+    }
+
+    /**
+     * Writes one class into the JAR, creating its package directories
+     *
+     * @param jar: the zip file system of the JAR
+     * @param internalName: the internal name of the class
+     * @param code: the bytecode of the class
+     * @throws IOException if the entry can't be written
+     */
+    private static void writeEntry(FileSystem jar, String internalName, byte[] code) throws IOException {
+        Path entry = jar.getPath(internalName + ".class");
+        if (entry.getParent() != null) {
+            Files.createDirectories(entry.getParent());
+        }
+        Files.write(entry, code);
+    }
+
+    /**
+     * Reads the class file of a runtime support class from the compiler's own class path
+     *
+     * @param internalName: the internal name of the class
+     * @return the bytecode of the class
+     * @throws IOException if the class file can't be found or read
+     */
+    private static byte[] runtimeClass(String internalName) throws IOException {
+        try (InputStream in = JarWriter.class.getClassLoader().getResourceAsStream(internalName + ".class")) {
+            if (in == null) {
+                throw new IOException("***Runtime class '" + internalName + "' not found***");
+            }
+            return in.readAllBytes();
+        }
+    }
+
+}
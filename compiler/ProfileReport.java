@@ -0,0 +1,138 @@
+package compiler;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+* ProfileReport Class that writes the hot line report of a program compiled with profiling.  The generated class registers its block counters when it is loaded, and the report is written when the JVM exits.
+* The report goes to <source name>.profile in the directory named by the kc.profile.dir property, or the working directory
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public final class ProfileReport extends Thread {
+
+    private static final Comparator<Map.Entry<Integer, Long>> HOTTEST_FIRST = new HottestFirst();
+
+    private final String sourceFile;
+    private final String blocks;
+    private final long[] counts;
+
+    /**
+     * Constructor
+     *
+     * @param sourceFile: the name of the KnightCode source
+     * @param blocks: the source lines of the statements in each block, blocks separated by commas and lines by spaces
+     * @param counts: the counter of each block
+     */
+    private ProfileReport(String sourceFile, String blocks, long[] counts) {
+        this.sourceFile = sourceFile;
+        this.blocks = blocks;
+        this.counts = counts;
+    }
+
+    /**
+     * Registers the counters of a profiled class so the report is written at exit.  Called from the static initializer of the generated class
+     *
+     * @param sourceFile: the name of the KnightCode source
+     * @param blocks: the source lines of the statements in each block, blocks separated by commas and lines by spaces
+     * @param counts: the counter of each block
+     */
+    public static void register(String sourceFile, String blocks, long[] counts) {
+        Runtime.getRuntime().addShutdownHook(new ProfileReport(sourceFile, blocks, counts));
+    }
+
+    /**
+     * Adds up how many statements ran on each source line
+     *
+     * @return the statement executions by line
+     */
+    public Map<Integer, Long> lineCounts() {
+        Map<Integer, Long> byLine = new TreeMap<>();
+        String[] blockList = blocks.isEmpty() ? new String[0] : blocks.split(",");
+        for (int block = 0; block < blockList.length; block++) {
+            for (String line : blockList[block].split(" ")) {
+                Integer key = Integer.valueOf(line);
+                Long count = byLine.get(key);
+                byLine.put(key, count == null ? counts[block] : count + counts[block]);
+            }
+        }
+        return byLine;
+    }
+
+    /**
+     * Writes the report, hottest lines first.  Runs as a shutdown hook, so it avoids lambdas, formatters and string concatenation, which would bootstrap method handles on every profiled exit
+     */
+    @Override
+    public void run() {
+        List<Map.Entry<Integer, Long>> lines = new ArrayList<>(lineCounts().entrySet());
+        lines.sort(HOTTEST_FIRST);
+        long total = 0;
+        for (Map.Entry<Integer, Long> line : lines) {
+            total += line.getValue();
+        }
+
+        String base = Paths.get(sourceFile).getFileName().toString();
+        if (base.endsWith(".kc")) {
+            base = base.substring(0, base.length() - 3);
+        }
+        Path file = Paths.get(System.getProperty("kc.profile.dir", "."), base.concat(".profile"));
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.print("# Hot lines of ");
+            out.print(sourceFile);
+            out.print(", ");
+            out.print(total);
+            out.println(" statements executed");
+            out.println("#   line    executions      %");
+            for (Map.Entry<Integer, Long> line : lines) {
+                long hundredths = total == 0 ? 0 : 10000 * line.getValue() / total;
+                StringBuilder percent = new StringBuilder().append(hundredths / 100).append(hundredths % 100 < 10 ? ".0" : ".").append(hundredths % 100);
+                out.print(pad(line.getKey().toString(), 8));
+                out.print(pad(line.getValue().toString(), 14));
+                out.println(pad(percent.toString(), 7));
+            }
+            System.err.print("Profile written to ");
+            System.err.println(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Right aligns text in a column
+     *
+     * @param text: the text
+     * @param width: the width of the column
+     * @return the padded text
+     */
+    private static String pad(String text, int width) {
+        StringBuilder padded = new StringBuilder();
+        for (int i = text.length(); i < width; i++) {
+            padded.append(' ');
+        }
+        return padded.append(text).toString();
+    }
+
+    /**
+     * Orders lines by their count, highest first.  A named class rather than a lambda, for the same reason as run, and rather than an anonymous one so JarWriter can list it by name
+     */
+    static final class HottestFirst implements Comparator<Map.Entry<Integer, Long>> {
+        @Override
+        public int compare(Map.Entry<Integer, Long> a, Map.Entry<Integer, Long> b) {
+            return Long.compare(b.getValue(), a.getValue());
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+package compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import lexparse.KnightCodeParser;
+
+/**
+* ProgramRunner Class that runs many KnightCode programs concurrently in one JVM.  Programs are compiled in memory with an I/O context parameter, so every job gets its own input and output, and jobs are scheduled on virtual threads with a limit on how many run at once
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class ProgramRunner {
+
+    private final int maxConcurrent;
+
+    /**
+     * Constructor
+     *
+     * @param maxConcurrent: the most jobs allowed to run at the same time
+     */
+    public ProgramRunner(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Main method that runs each program given on the command line, optionally with an input file after a colon, a number of times
+     *
+     * @param args: [-concurrency N] [-repeat N] [-show] [-meter steps[,millis]] followed by program.kc[:input file] arguments
+     * @throws Exception if a program can't be read or compiled
+     */
+    public static void main(String[] args) throws Exception {
+        int concurrency = Runtime.getRuntime().availableProcessors() * 64;
+        int repeat = 1;
+        boolean show = false;
+        long[] budget = {0, 0};
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("-"); first++) {
+            switch (args[first]) {
+                case "-concurrency":
+                    concurrency = first + 1 < args.length && args[first + 1].matches("[1-9][0-9]{0,8}") ? Integer.parseInt(args[++first]) : 0;
+                    if (concurrency == 0) {
+                        first = args.length;
+                    }
+                    break;
+                case "-repeat":
+                    repeat = first + 1 < args.length && args[first + 1].matches("[1-9][0-9]{0,8}") ? Integer.parseInt(args[++first]) : 0;
+                    if (repeat == 0) {
+                        first = args.length;
+                    }
+                    break;
+                case "-show":
+                    show = true;
+                    break;
+                case "-meter":
+                    budget = first + 1 < args.length ? ExecutionBudget.parse(args[++first]) : null;
+                    if (budget == null) {
+                        first = args.length;
+                    }
+                    break;
+                default:
+                    first = args.length;
+            }
+        }
+        if (first >= args.length) {
+            System.out.println("***Usage: java compiler/ProgramRunner [-concurrency N] [-repeat N] [-show] [-meter steps[,millis]] <input file>[:<stdin file>] ...***");
+            return;
+        }
+
+        ProgramRunner runner = new ProgramRunner(concurrency);
+        List<Job> jobs = new ArrayList<>();
+        for (String arg : Arrays.copyOfRange(args, first, args.length)) {
+            String[] parts = arg.split(":", 2);
+            MethodHandle program = compile(parts[0], budget[0], budget[1]);
+            String input = parts.length > 1 ? new String(Files.readAllBytes(Paths.get(parts[1])), StandardCharsets.UTF_8) : "";
+            for (int i = 0; i < repeat; i++) {
+                jobs.add(new Job(jobs.size(), parts[0], program, input));
+            }
+        }
+
+        long start = System.nanoTime();
+        List<JobResult> results = runner.runAll(jobs);
+        long elapsed = System.nanoTime() - start;
+
+        long[] runTimes = new long[results.size()];
+        int failed = 0;
+        for (JobResult result : results) {
+            runTimes[result.job.id] = result.runNanos;
+            if (result.error != null) {
+                failed++;
+            }
+            if (show || result.error != null) {
+                System.out.printf("job %d %s: queued %.3f ms, ran %.3f ms%s%n", result.job.id, result.job.name,
+                    result.queueNanos / 1e6, result.runNanos / 1e6, result.error != null ? ", failed: " + result.error : "");
+            }
+            if (show) {
+                System.out.print(result.output);
+            }
+        }
+        Arrays.sort(runTimes);
+        System.out.printf("%d jobs (%d failed) in %.1f ms, %.0f jobs/s, run time p50 %.3f ms p99 %.3f ms, concurrency %d%n",
+            results.size(), failed, elapsed / 1e6, results.size() / (elapsed / 1e9),
+            percentile(runTimes, 0.50) / 1e6, percentile(runTimes, 0.99) / 1e6, concurrency);
+    }
+
+    /**
+     * Compiles a program in memory with an I/O context parameter and looks up its run method.  Each program gets its own class loader so programs with the same name don't clash
+     *
+     * @param inputFile: the path of the KnightCode source
+     * @return the handle of the run method, taking an IOContext
+     * @throws IOException if the source can't be read
+     * @throws ReflectiveOperationException if the run method can't be found
+     */
+    public static MethodHandle compile(String inputFile) throws IOException, ReflectiveOperationException {
+        return compile(inputFile, 0, 0);
+    }
+
+    /**
+     * Compiles a program in memory like compile(String), metered so each run stops with a BudgetExceededException once it goes over budget
+     *
+     * @param inputFile: the path of the KnightCode source
+     * @param steps: the most loop iterations a run may take, 0 for no limit
+     * @param millis: the most milliseconds a run may take, 0 for no limit
+     * @return the handle of the run method, taking an IOContext
+     * @throws IOException if the source can't be read
+     * @throws ReflectiveOperationException if the run method can't be found
+     */
+    public static MethodHandle compile(String inputFile, long steps, long millis) throws IOException, ReflectiveOperationException {
+        KnightCodeParser.FileContext tree = kcc.parse(kcc.readSource(inputFile));
+        CustomVisitor visitor = new CustomVisitor();
+        visitor.setVerbose(false);
+        visitor.setIOContext(true);
+        visitor.setExecutionBudget(steps, millis);
+        visitor.setSourceFile(Paths.get(inputFile).getFileName().toString());
+        visitor.setClassName("output/" + tree.ID().getText());
+        visitor.visit(tree);
+
+        Class<?> type = new ByteClassLoader(ProgramRunner.class.getClassLoader()).define(visitor.getClassName(), visitor.getBytecode());
+        return MethodHandles.publicLookup().findStatic(type, CustomVisitor.RUN_METHOD, MethodType.methodType(void.class, IOContext.class));
+    }
+
+    /**
+     * Runs all the jobs and waits for them to finish
+     *
+     * @param jobs: the jobs to run
+     * @return the result of each job, in the same order as the jobs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<JobResult> runAll(List<Job> jobs) throws InterruptedException {
+        Semaphore permits = new Semaphore(maxConcurrent);
+        List<Future<JobResult>> futures = new ArrayList<>();
+        ExecutorService executor = newExecutor();
+        try {
+            //Every job is queued at once, and a permit is taken before a job is handed to the executor, so a platform thread pool never holds more threads than permits
+            long queued = System.nanoTime();
+            for (Job job : jobs) {
+                permits.acquire();
+                try {
+                    futures.add(executor.submit(() -> {
+                        try {
+                            return runJob(job, System.nanoTime() - queued);
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+            List<JobResult> results = new ArrayList<>();
+            for (Future<JobResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs one job on the current thread with its own input and output
+     *
+     * @param job: the job to run
+     * @param queueNanos: how long the job waited before it could start
+     * @return the result of the job
+     */
+    private static JobResult runJob(Job job, long queueNanos) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        IOContext io = new StreamIOContext(new StringReader(job.input), out);
+        Throwable error = null;
+        long start = System.nanoTime();
+        try {
+            job.program.invokeExact(io);
+        } catch (Throwable e) {
+            error = e;
+        }
+        long runNanos = System.nanoTime() - start;
+        out.flush();
+        return new JobResult(job, buffer.toString(StandardCharsets.UTF_8), error, queueNanos, runNanos);
+    }
+
+    /**
+     * Creates an executor with one virtual thread per task, or a cached thread pool on JVMs older than 21
+     *
+     * @return the executor
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Gets a percentile of sorted values
+     *
+     * @param sorted: the values in ascending order
+     * @param fraction: the percentile as a fraction between 0 and 1
+     * @return the value at the percentile, or 0 if there are no values
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+    }
+
+    /**
+     * One execution of a compiled program on a given input
+     */
+    public static class Job {
+        private final int id;
+        private final String name;
+        private final MethodHandle program;
+        private final String input;
+
+        /**
+         * Constructor
+         *
+         * @param id: the number of the job
+         * @param name: the name shown in reports
+         * @param program: the run method of the program, from compile
+         * @param input: the text the program READs from
+         */
+        public Job(int id, String name, MethodHandle program, String input) {
+            this.id = id;
+            this.name = name;
+            this.program = program;
+            this.input = input;
+        }
+    }
+
+    /**
+     * The output and timing of a finished job
+     */
+    public static class JobResult {
+        private final Job job;
+        private final String output;
+        private final Throwable error;
+        private final long queueNanos;
+        private final long runNanos;
+
+        JobResult(Job job, String output, Throwable error, long queueNanos, long runNanos) {
+            this.job = job;
+            this.output = output;
+            this.error = error;
+            this.queueNanos = queueNanos;
+            this.runNanos = runNanos;
+        }
+
+        /**
+         * Gets everything the job printed
+         *
+         * @return the output
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Gets what the job threw, if anything
+         *
+         * @return the error, or null if the job finished normally
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Gets how long the job waited for a free slot
+         *
+         * @return the wait in nanoseconds
+         */
+        public long getQueueNanos() {
+            return queueNanos;
+        }
+
+        /**
+         * Gets how long the program ran
+         *
+         * @return the run time in nanoseconds
+         */
+        public long getRunNanos() {
+            return runNanos;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package compiler;
+
+import java.util.NoSuchElementException;
+
+/**
+* RecordIOContext Class that runs a program against one record of a columnar batch at a time.  The n-th READ of a run takes field n of the current record, and everything the run PRINTs goes to a buffer for that record
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class RecordIOContext implements IOContext {
+
+    private final Object[] columns;
+    private final StringBuilder output;
+    private int row;
+    private int field;
+
+    /**
+     * Constructor
+     * 
+     * @param columns: the fields of the batch, each an int[] or a String[] with one entry per record
+     */
+    public RecordIOContext(Object[] columns) {
+        this.columns = columns;
+        this.output = new StringBuilder();
+    }
+
+    /**
+     * Moves to a record, starting again from its first field with an empty output buffer
+     * 
+     * @param row: the index of the record
+     */
+    public void select(int row) {
+        this.row = row;
+        this.field = 0;
+        output.setLength(0);
+    }
+
+    /**
+     * Gets what the program printed for the current record
+     * 
+     * @return the output, one line per PRINT
+     */
+    public String getOutput() {
+        return output.toString();
+    }
+
+    @Override
+    public int readInt() {
+        Object column = nextColumn();
+        if (column instanceof int[]) {
+            return ((int[]) column)[row];
+        }
+        return Integer.parseInt(((String[]) column)[row].trim());
+    }
+
+    @Override
+    public String readString() {
+        Object column = nextColumn();
+        if (column instanceof int[]) {
+            return Integer.toString(((int[]) column)[row]);
+        }
+        return ((String[]) column)[row];
+    }
+
+    @Override
+    public void print(int value) {
+        output.append(value).append('\n');
+    }
+
+    @Override
+    public void print(String value) {
+        output.append(value).append('\n');
+    }
+
+    /**
+     * Gets the column the next READ is bound to
+     * 
+     * @return the column
+     * @throws NoSuchElementException if the record has no more fields
+     */
+    private Object nextColumn() {
+        if (field >= columns.length) {
+            throw new NoSuchElementException("***Record " + row + " has only " + columns.length + " fields.***");
+        }
+        return columns[field++];
+    }
+
+}
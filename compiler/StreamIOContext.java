@@ -0,0 +1,90 @@
+package compiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+/**
+* StreamIOContext Class that runs a program's READ and PRINT over a reader and a print stream.  Each READ consumes one line of input, which is how a program behaves at the console when every READ makes a fresh Scanner
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class StreamIOContext implements IOContext {
+
+    private final BufferedReader in;
+    private final PrintStream out;
+
+    /**
+     * Constructor
+     * 
+     * @param in: the stream to read input from
+     * @param out: the stream to print to
+     */
+    public StreamIOContext(InputStream in, PrintStream out) {
+        this(new InputStreamReader(in), out);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param in: the reader to read input from
+     * @param out: the stream to print to
+     */
+    public StreamIOContext(Reader in, PrintStream out) {
+        this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        this.out = out;
+    }
+
+    /**
+     * Reads the next integer, skipping blank lines and ignoring anything after the first token
+     * 
+     * @return the integer read
+     */
+    @Override
+    public int readInt() {
+        String line = readString().trim();
+        while (line.isEmpty()) {
+            line = readString().trim();
+        }
+        return Integer.parseInt(line.split("\\s+")[0]);
+    }
+
+    /**
+     * Reads the next line of input
+     * 
+     * @return the line
+     * @throws NoSuchElementException if the input is exhausted
+     */
+    @Override
+    public String readString() {
+        try {
+            String line = in.readLine();
+            if (line == null) {
+                throw new NoSuchElementException("***No more input.***");
+            }
+            return line;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void print(int value) {
+        out.println(value);
+    }
+
+    @Override
+    public void print(String value) {
+        out.println(value);
+    }
+
+}
@@ -0,0 +1,300 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import lexparse.KnightCodeParser;
+
+/**
+* SwitchLowering Class that finds chains of IF statements testing one INTEGER variable for equality with different numbers, so CustomVisitor can dispatch them with a single tableswitch or lookupswitch instead of a compare and branch per test.
+* Two shapes are recognized:
+*   IF v = 1 THEN ... ENDIF IF v = 2 THEN ... ENDIF ...  a run of statements with no ELSE, where no body but the last may change v, so at most one body runs
+*   IF v = 1 THEN ... ELSE IF v = 2 THEN ... ELSE ... ENDIF ENDIF  nested ELSE chains, where the innermost ELSE becomes the default
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class SwitchLowering {
+
+    /** Fewest tests worth turning into a switch, below this the compare chain is as fast */
+    public static final int MIN_CASES = 3;
+
+    private final SymbolTable symbolTable;
+
+    /**
+     * Constructor
+     *
+     * @param symbolTable: the variables of the program, to check that the tested variable is an INTEGER
+     */
+    public SwitchLowering(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    /**
+     * Looks for a run of IF statements without ELSE at the given position of a statement list
+     *
+     * @param stats: the statement list
+     * @param first: the position of the first IF
+     * @return the chain, or null if fewer than MIN_CASES statements can be lowered
+     */
+    public Chain sequentialChain(List<? extends ParseTree> stats, int first) {
+        Chain chain = null;
+        Set<Integer> keys = new HashSet<>();
+        for (int i = first; i < stats.size(); i++) {
+            KnightCodeParser.DecisionContext decision = decisionOf(stats.get(i));
+            Test test = decision != null ? test(decision) : null;
+            if (test == null || elseIndex(decision) >= 0 || (chain != null && !chain.variable.equals(test.variable)) || !keys.add(test.key)) {
+                break;
+            }
+            if (chain == null) {
+                chain = new Chain(test.variable);
+            }
+            else if (assigns(chain.bodies.get(chain.bodies.size() - 1), chain.variable)) {
+                //The previous body can change the variable, so this test has to see the new value
+                break;
+            }
+            chain.keys.add(test.key);
+            chain.bodies.add(decision.children.subList(5, decision.getChildCount() - 1));
+            chain.statements++;
+        }
+        return chain != null && chain.keys.size() >= MIN_CASES ? chain : null;
+    }
+
+    /**
+     * Looks for a nested ELSE chain starting at a decision
+     *
+     * @param decision: the outermost decision
+     * @return the chain, or null if it has fewer than MIN_CASES tests
+     */
+    public Chain elseChain(KnightCodeParser.DecisionContext decision) {
+        Test test = test(decision);
+        if (test == null) {
+            return null;
+        }
+        Chain chain = new Chain(test.variable);
+        chain.statements = 1;
+        Set<Integer> keys = new HashSet<>();
+        while (true) {
+            int elseIndex = elseIndex(decision);
+            List<ParseTree> thenStats = decision.children.subList(5, elseIndex >= 0 ? elseIndex : decision.getChildCount() - 1);
+            //A repeated number can never match again, the first test already took it
+            if (keys.add(test.key)) {
+                chain.keys.add(test.key);
+                chain.bodies.add(thenStats);
+            }
+            if (elseIndex < 0) {
+                break;
+            }
+
+            List<ParseTree> elseStats = decision.children.subList(elseIndex + 1, decision.getChildCount() - 1);
+            KnightCodeParser.DecisionContext next = elseStats.size() == 1 ? decisionOf(elseStats.get(0)) : null;
+            Test nextTest = next != null ? test(next) : null;
+            if (nextTest == null || !nextTest.variable.equals(chain.variable)) {
+                chain.defaultBody = elseStats;
+                break;
+            }
+            decision = next;
+            test = nextTest;
+        }
+        return chain.keys.size() >= MIN_CASES ? chain : null;
+    }
+
+    /**
+     * Chooses between a tableswitch and a lookupswitch the way javac does, weighing code size against the number of comparisons
+     *
+     * @param low: the smallest key
+     * @param high: the largest key
+     * @param cases: the number of keys
+     * @return true to use a tableswitch
+     */
+    public static boolean useTableSwitch(int low, int high, int cases) {
+        long tableSpace = 4 + ((long) high - low + 1);
+        long tableTime = 3;
+        long lookupSpace = 3 + 2 * (long) cases;
+        long lookupTime = cases;
+        return tableSpace + 3 * tableTime <= lookupSpace + 3 * lookupTime;
+    }
+
+    /**
+     * Gets the decision a statement consists of
+     *
+     * @param stat: a statement, or a terminal such as ELSE
+     * @return the decision, or null if the statement is something else
+     */
+    private static KnightCodeParser.DecisionContext decisionOf(ParseTree stat) {
+        return stat instanceof KnightCodeParser.StatContext ? ((KnightCodeParser.StatContext) stat).decision() : null;
+    }
+
+    /**
+     * Gets the position of ELSE among the children of a decision
+     *
+     * @param decision: the decision
+     * @return the position, or -1 if there is no ELSE
+     */
+    private static int elseIndex(KnightCodeParser.DecisionContext decision) {
+        for (int i = 5; i < decision.getChildCount(); i++) {
+            if (decision.getChild(i) instanceof TerminalNode && "ELSE".equals(decision.getChild(i).getText())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the condition of a decision as an equality test of an INTEGER variable against a number, on either side
+     *
+     * @param decision: the decision
+     * @return the test, or null if the condition is anything else
+     */
+    private Test test(KnightCodeParser.DecisionContext decision) {
+        if (!"=".equals(decision.getChild(2).getText())) {
+            return null;
+        }
+        String left = decision.getChild(1).getText();
+        String right = decision.getChild(3).getText();
+        String variable = isNumber(left) ? right : left;
+        String number = isNumber(left) ? left : right;
+        Variable var = symbolTable.getVariable(variable);
+        if (var == null || !var.isInt() || !isNumber(number)) {
+            return null;
+        }
+        try {
+            return new Test(variable, Integer.parseInt(number));
+        } catch (NumberFormatException e) {
+            //Too big for an int, leave it to the compare chain
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether text is a NUMBER token
+     *
+     * @param text: the text
+     * @return true if it is all digits
+     */
+    private static boolean isNumber(String text) {
+        return !text.isEmpty() && Character.isDigit(text.charAt(0));
+    }
+
+    /**
+     * Checks whether any statement in a list, at any depth, SETs or READs a variable
+     *
+     * @param stats: the statements
+     * @param variable: the name of the variable
+     * @return true if the variable may be changed
+     */
+    private static boolean assigns(List<ParseTree> stats, String variable) {
+        for (ParseTree stat : stats) {
+            if (assigns(stat, variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a subtree SETs or READs a variable
+     *
+     * @param tree: the subtree
+     * @param variable: the name of the variable
+     * @return true if the variable may be changed
+     */
+    private static boolean assigns(ParseTree tree, String variable) {
+        if (tree instanceof KnightCodeParser.SetvarContext) {
+            return variable.equals(((KnightCodeParser.SetvarContext) tree).ID().getText());
+        }
+        if (tree instanceof KnightCodeParser.ReadContext) {
+            return variable.equals(((KnightCodeParser.ReadContext) tree).ID().getText());
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (assigns(tree.getChild(i), variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An equality test of a variable against a number
+     */
+    private static class Test {
+        private final String variable;
+        private final int key;
+
+        Test(String variable, int key) {
+            this.variable = variable;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A chain of tests that can be lowered to one switch
+     */
+    public static class Chain {
+        private final String variable;
+        private final List<Integer> keys;
+        private final List<List<ParseTree>> bodies;
+        private List<ParseTree> defaultBody;
+        private int statements;
+
+        Chain(String variable) {
+            this.variable = variable;
+            this.keys = new ArrayList<>();
+            this.bodies = new ArrayList<>();
+        }
+
+        /**
+         * Gets the tested variable
+         *
+         * @return the name of the variable
+         */
+        public String getVariable() {
+            return variable;
+        }
+
+        /**
+         * Gets the number each case tests for
+         *
+         * @return the keys, in source order
+         */
+        public List<Integer> getKeys() {
+            return keys;
+        }
+
+        /**
+         * Gets the statements run for each key
+         *
+         * @return the bodies, in the same order as the keys
+         */
+        public List<List<ParseTree>> getBodies() {
+            return bodies;
+        }
+
+        /**
+         * Gets the statements run when no key matches
+         *
+         * @return the innermost ELSE of an ELSE chain, or null if nothing runs
+         */
+        public List<ParseTree> getDefaultBody() {
+            return defaultBody;
+        }
+
+        /**
+         * Gets how many statements of the enclosing list the chain covers
+         *
+         * @return the number of statements
+         */
+        public int getStatements() {
+            return statements;
+        }
+    }
+
+}
@@ -15,15 +15,37 @@ import java.util.Stack;
 public class SymbolTable {
 
     private Stack<HashMap<String, Variable>> spans;
+    private int firstIndex;
+    private boolean verbose;
 
     /**
      * Constructs a new SymbolTable and enters the span
      */
     public SymbolTable() {
+        this(0);
+    }
+
+    /**
+     * Constructs a new SymbolTable whose variables are numbered from the given index and enters the span
+     * 
+     * @param firstIndex: the index given to the first variable of each span, so local slots taken by method parameters are skipped
+     */
+    public SymbolTable(int firstIndex) {
+        this.firstIndex = firstIndex;
+        this.verbose = true;
         spans = new Stack<>();
         enterSpan();
     }
 
+    /**
+     * Sets whether declarations are printed as they happen
+     * 
+     * @param verbose: true to print each declaration
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
     /**
      * Creates a span by pushing a hashmap onto the stack
      */
@@ -53,8 +75,10 @@ public class SymbolTable {
         if (currentSpan.containsKey(name)) {
             throw new Exception("***Variable '" + name + "' is already declared in this span.***");
         }
-        int newIndex = currentSpan.size();
-        System.out.println("Declaring variable: " + name + " at index: " + newIndex);
+        int newIndex = firstIndex + currentSpan.size();
+        if (verbose) {
+            System.out.println("Declaring variable: " + name + " at index: " + newIndex);
+        }
         Variable newVar = new Variable(name, type, value, newIndex);
         currentSpan.put(name, newVar);
     }
@@ -0,0 +1,138 @@
+package compiler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+
+import lexparse.KnightCodeParser;
+
+/**
+* WatchCompiler Class that compiles a program again each time its source is saved, for editors that compile on every save.  The directory of the source is watched with a WatchService, and an IncrementalParser keeps the tokens and parse tree between saves, so only the statements around an edit are lexed and parsed again.
+* Code generation still walks the whole tree.  The class writer numbers the constant pool in the order constants are first used, and the jumps, line numbers and stack map frames of main are all offsets into it, so part of an old class can't be reused without the bytes differing from a clean build.  A save that changes no token, such as an edit to a comment or to the spaces within a line, keeps the class it has
+
+* @author Jim Farese
+* @version 1.0
+* Assignment 5
+* CS322 - Compiler Construction
+* Spring 2024
+**/
+public class WatchCompiler {
+
+    private final Path inputFile;
+    private final String outputFile;
+    private final Consumer<CustomVisitor> options;
+    private final IncrementalParser parser;
+
+    /**
+     * Constructor
+     *
+     * @param inputFile: the path of the KnightCode source
+     * @param outputFile: the name of the class, written to output/<name>.class like kcc
+     * @param options: sets the code generation options on each new visitor
+     */
+    public WatchCompiler(Path inputFile, String outputFile, Consumer<CustomVisitor> options) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.options = options;
+        this.parser = new IncrementalParser(inputFile.toString());
+    }
+
+    /**
+     * Compiles the program, then again after each save until the process is stopped or the directory goes away
+     *
+     * @throws IOException if the directory can't be watched
+     * @throws InterruptedException if interrupted while waiting for a save
+     */
+    public void watch() throws IOException, InterruptedException {
+        compile();
+        Path directory = inputFile.toAbsolutePath().getParent();
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            //Editors that save to a temporary file and rename it over the source create it rather than modify it
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            System.out.println("Watching " + inputFile + ", stop with Ctrl+C");
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean saved = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    saved |= event.kind() == StandardWatchEventKinds.OVERFLOW || inputFile.getFileName().equals(event.context());
+                }
+                if (saved) {
+                    compile();
+                }
+                if (!key.reset()) {
+                    System.out.println("***Directory of " + inputFile + " is gone***");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the source and compiles it, reporting how long it took from the save to the class.  An unchanged file, as when an editor writes it twice in one save, costs one comparison
+     */
+    public void compile() {
+        long start = System.nanoTime();
+        String source;
+        long saved;
+        try {
+            source = new String(Files.readAllBytes(inputFile), StandardCharsets.UTF_8);
+            saved = Files.getLastModifiedTime(inputFile).toMillis();
+        } catch (IOException e) {
+            //Between the delete and the rename of an editor's save, the next event brings the new file
+            System.out.println("***Can't read " + inputFile + ": " + e.getMessage() + "***");
+            return;
+        }
+
+        KnightCodeParser.FileContext tree = parser.update(source);
+        long parsed = System.nanoTime();
+        if (parser.hasErrors()) {
+            System.out.println("***" + inputFile.getFileName() + " has syntax errors, not compiled***");
+            return;
+        }
+        if (!parser.isTreeChanged()) {
+            return;
+        }
+
+        try {
+            generate(tree, options, inputFile.getFileName().toString(), outputFile);
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        long done = System.nanoTime();
+
+        String parse = parser.isFullParse() ? "full parse" : "relexed " + parser.getRelexedTokens() + " tokens, reparsed " + parser.getReparsedStatements() + " of " + parser.getStatements() + " statements";
+        System.out.printf("Compiled output/%s.class in %.1f ms (%s %.1f ms, codegen %.1f ms), %d ms after the save%n", outputFile, (done - start) / 1e6, parse, (parsed - start) / 1e6, (done - parsed) / 1e6, Math.max(0, System.currentTimeMillis() - saved));
+    }
+
+    /**
+     * Generates the class of a parse tree with the same options kcc uses
+     *
+     * @param tree: the parse tree of the program
+     * @param options: sets the code generation options on the visitor
+     * @param sourceFile: the file name of the source, recorded in the class
+     * @param outputFile: the name of the class to write to output/, or null to name it output/<PROGRAM name> and only keep it in memory
+     * @return the bytecode of the class
+     */
+    public static byte[] generate(KnightCodeParser.FileContext tree, Consumer<CustomVisitor> options, String sourceFile, String outputFile) {
+        CustomVisitor visitor = new CustomVisitor();
+        visitor.setVerbose(false);
+        options.accept(visitor);
+        visitor.setSourceFile(sourceFile);
+        if (outputFile != null) {
+            visitor.setOutputFile(outputFile);
+        }
+        else {
+            visitor.setClassName("output/" + tree.ID().getText());
+        }
+        visitor.visit(tree);
+        return visitor.getBytecode();
+    }
+
+}
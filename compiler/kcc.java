@@ -1,11 +1,32 @@
 package compiler;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.antlr.v4.gui.Trees;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CodePointBuffer;
+import org.antlr.v4.runtime.CodePointCharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 import lexparse.KnightCodeLexer;
@@ -23,40 +44,366 @@ import lexparse.KnightCodeParser;
 public class kcc {
 
     /**
-    * Main method that takes 2 command-line arguments; an input argument to import a file and an output argumnet to designate the location to create the output file to
+    * Main method that takes 2 command-line arguments; an input argument to import a file and an output argumnet to designate the location to create the output file to.
+    * Options go before the files: -run interprets the input file instead, compiling only its hot loops, -io generates a program that does its I/O through an IOContext parameter, -profile adds statement counters that write a hot line report at exit, -target picks the Java release of the class file, -no-switch compiles IF chains without switches and -gui shows the parse tree.
+    * -pgo-train adds branch counters that write <input>.pgo at exit, and -pgo <profile> compiles with such a profile, laying out branches by how often they ran, moving cold code out of line and rotating hot loops.  -outline-loops compiles each WHILE loop into a method of its own so HotSpot can compile it normally.
+    * -meter steps[,millis] stops the program with exit code 3 once its loops have run that many iterations or that much time, 0 meaning no limit.
+    * -watch keeps running after the first compile and compiles the program again each time the input file is saved, parsing only the statements around the edit.
+    * -jar compiles any number of input files into one JAR, each class named after its PROGRAM, and -cds also dumps an AppCDS archive of that JAR
     
     * @param args: Command line arguments that designates input and output paths 
     */
     public static void main(String[] args) {
+        boolean run = false;
+        boolean ioContext = false;
+        boolean profiling = false;
+        boolean gui = false;
+        boolean cds = false;
+        int target = 8;
+        boolean switchLowering = true;
+        String jarFile = null;
+        boolean pgoTraining = false;
+        String pgoFile = null;
+        boolean loopOutlining = false;
+        long[] budget = null;
+        boolean watch = false;
+        boolean badOption = false;
+        boolean unknownOption = false;
+        Set<String> given = new LinkedHashSet<>();
+
+        //Options come before the file arguments
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("-"); first++) {
+            given.add(args[first]);
+            switch (args[first]) {
+                case "-run":
+                    run = true;
+                    break;
+                case "-io":
+                    ioContext = true;
+                    break;
+                case "-profile":
+                    profiling = true;
+                    break;
+                case "-gui":
+                    gui = true;
+                    break;
+                case "-jar":
+                    jarFile = first + 1 < args.length ? args[++first] : null;
+                    if (jarFile == null) {
+                        System.out.println("***-jar needs an output jar***");
+                        badOption = true;
+                    }
+                    break;
+                case "-no-switch":
+                    switchLowering = false;
+                    break;
+                case "-pgo-train":
+                    pgoTraining = true;
+                    break;
+                case "-pgo":
+                    pgoFile = first + 1 < args.length ? args[++first] : null;
+                    if (pgoFile == null) {
+                        System.out.println("***-pgo needs a profile***");
+                        badOption = true;
+                    }
+                    break;
+                case "-outline-loops":
+                    loopOutlining = true;
+                    break;
+                case "-meter":
+                    String spec = first + 1 < args.length ? args[++first] : "";
+                    budget = ExecutionBudget.parse(spec);
+                    if (budget == null) {
+                        System.out.println("***Invalid -meter budget '" + spec + "', expected steps[,millis] of up to 12 digits each***");
+                        badOption = true;
+                    }
+                    break;
+                case "-watch":
+                    watch = true;
+                    break;
+                case "-cds":
+                    cds = true;
+                    break;
+                case "-target":
+                    String release = first + 1 < args.length ? args[++first] : "";
+                    if (!release.matches("8|17|21")) {
+                        System.out.println("***Invalid -target release '" + release + "', expected 8, 17 or 21***");
+                        badOption = true;
+                    } else {
+                        target = Integer.parseInt(release);
+                    }
+                    break;
+                default:
+                    System.out.println("***Unknown option '" + args[first] + "'***");
+                    unknownOption = true;
+                    first = args.length;
+            }
+        }
+
         //Checks for the correct number of command line arguments
-        if (args.length != 2) {
-            System.out.println("***Usage: java compiler/kcc <input file> <output class file>***");
+        int files = args.length - first;
+        if (unknownOption || badOption || (!run && jarFile == null && files != 2)) {
+            printUsage();
+            return;
+        }
+
+        //Each mode takes only some of the options, so name the first one that doesn't apply
+        String problem = null;
+        if (run) {
+            String outside = firstOutside(given, "-run");
+            problem = outside != null ? outside + " can't be used with -run" : files != 1 ? "-run takes one input file" : null;
+        } else if (jarFile != null) {
+            String outside = firstOutside(given, "-jar", "-io", "-profile", "-target", "-cds");
+            problem = outside != null ? outside + " can't be used with -jar" : files < 1 ? "-jar needs at least one input file" : null;
+        } else if (cds) {
+            problem = "-cds can only be used with -jar";
+        } else if (pgoTraining && pgoFile != null) {
+            problem = "-pgo-train can't be used with -pgo";
+        } else if (watch && gui) {
+            problem = "-watch can't be used with -gui";
+        }
+        if (problem != null) {
+            System.out.println("***" + problem + "***");
+            return;
+        }
+
+        String inputFile = args[first];
+
+        if (run) {
+            try {
+                new Interpreter(parse(readSource(inputFile))).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (jarFile != null) {
+            try {
+                compileJar(Arrays.copyOfRange(args, first, args.length), Paths.get(jarFile), ioContext, profiling, target, cds);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
             return;
         }
 
-        String inputFile = args[0];
-        String outputFile = args[1].replace("output/", "");
+        String outputFile = args[first + 1].replace("output/", "");
+
+        //A profile that can't be used stops the compile, so an old class in output isn't mistaken for a new one
+        Map<String, long[]> pgoProfile = null;
+        if (pgoFile != null) {
+            try {
+                pgoProfile = BranchProfile.load(Paths.get(pgoFile));
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
 
         try {
-            //Setup ANTLR for lexing and parsing
-            CharStream input = CharStreams.fromFileName(inputFile);
-            KnightCodeLexer lexer = new KnightCodeLexer(input);
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
-            KnightCodeParser parser = new KnightCodeParser(tokens);
+            Consumer<CustomVisitor> options = options(ioContext, profiling, target, switchLowering, pgoTraining, pgoProfile, loopOutlining, budget);
+            if (watch) {
+                new WatchCompiler(Paths.get(inputFile), outputFile, options).watch();
+                return;
+            }
 
             //Parse the input file to a parse tree
-            ParseTree tree = parser.file();
+            ParseTree tree = parse(readSource(inputFile));
 
             //Visit the parse tree to generate code
             CustomVisitor visitor = new CustomVisitor();
+            options.accept(visitor);
+            visitor.setSourceFile(Paths.get(inputFile).getFileName().toString());
             visitor.setOutputFile(outputFile);
             visitor.visit(tree);
 
-            //Display the parse tree GUI
-            Trees.inspect(tree, parser);
+            //Display the parse tree GUI only when asked, it loads AWT and needs a display
+            if (gui) {
+                showTree(tree);
+            }
 
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints the command line forms of the compiler
+     */
+    private static void printUsage() {
+        System.out.println("***Usage: java compiler/kcc [-io] [-profile] [-target 8|17|21] [-no-switch] [-pgo-train | -pgo <profile>] [-outline-loops] [-meter steps[,millis]] [-watch | -gui] <input file> <output class file>***");
+        System.out.println("***       java compiler/kcc [-io] [-profile] [-target 8|17|21] -jar <output jar> [-cds] <input file> ...***");
+        System.out.println("***       java compiler/kcc -run <input file>***");
+    }
+
+    /**
+     * Finds the first option given that a mode doesn't take
+     * 
+     * @param given: the options on the command line, in order
+     * @param allowed: the options the mode takes
+     * @return the first option not allowed, or null if they all are
+     */
+    private static String firstOutside(Set<String> given, String... allowed) {
+        List<String> options = Arrays.asList(allowed);
+        for (String option : given) {
+            if (!options.contains(option)) {
+                return option;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the code generation options of a single class compile, to apply to each visitor
+     * 
+     * @param ioContext: true to generate a program that takes an IOContext
+     * @param profiling: true to add statement counters
+     * @param target: the Java release the class targets
+     * @param switchLowering: true to compile IF chains to switches
+     * @param pgoTraining: true to add branch counters
+     * @param pgoProfile: the branch profile to lay out the code by, or null
+     * @param loopOutlining: true to compile each WHILE loop into its own method
+     * @param budget: the step and time budget, or null for an unmetered program
+     * @return the options, to pass a new visitor to before setting its file names
+     */
+    private static Consumer<CustomVisitor> options(boolean ioContext, boolean profiling, int target, boolean switchLowering, boolean pgoTraining, Map<String, long[]> pgoProfile, boolean loopOutlining, long[] budget) {
+        return visitor -> {
+            visitor.setIOContext(ioContext);
+            visitor.setProfiling(profiling);
+            visitor.setTarget(target);
+            visitor.setSwitchLowering(switchLowering);
+            visitor.setPgoTraining(pgoTraining);
+            visitor.setLoopOutlining(loopOutlining);
+            if (budget != null) {
+                visitor.setExecutionBudget(budget[0], budget[1]);
+            }
+            if (pgoProfile != null) {
+                visitor.setPgoProfile(pgoProfile);
+            }
+        };
+    }
+
+    /**
+     * Compiles several programs into one JAR.  Each class is named output/<PROGRAM name>, so two programs with the same name are an error, reported before anything is written
+     * 
+     * @param inputFiles: the paths of the KnightCode sources
+     * @param jarFile: the path of the JAR to write
+     * @param ioContext: true to generate programs that take an IOContext
+     * @param profiling: true to add statement counters
+     * @param target: the Java release the classes target
+     * @param cds: true to also dump an AppCDS archive of the JAR
+     * @throws IOException if a source can't be read or the JAR can't be written
+     * @throws InterruptedException if interrupted while dumping the archive
+     */
+    private static void compileJar(String[] inputFiles, Path jarFile, boolean ioContext, boolean profiling, int target, boolean cds) throws IOException, InterruptedException {
+        JarWriter jar = new JarWriter(jarFile);
+        Map<String, String> sources = new HashMap<>();
+        for (String inputFile : inputFiles) {
+            CustomVisitor visitor = compile(readSource(inputFile), Paths.get(inputFile).getFileName().toString(), ioContext, profiling, target);
+            String earlier = sources.putIfAbsent(visitor.getClassName(), inputFile);
+            if (earlier != null) {
+                System.out.println("***Duplicate class '" + visitor.getClassName() + "' in " + earlier + " and " + inputFile + ", no JAR written***");
+                return;
+            }
+            jar.add(visitor.getClassName(), visitor.getBytecode());
+        }
+        jar.write();
+        System.out.println("Wrote " + inputFiles.length + " classes to " + jarFile);
+
+        if (cds) {
+            System.out.println("Wrote CDS archive " + jar.writeArchive());
+        }
+    }
+
+    /**
+     * Compiles one program in memory, without tracing, into a class named output/<PROGRAM name>
+     * 
+     * @param input: the character stream of the source
+     * @param sourceFile: the file name of the source, recorded in the class
+     * @param ioContext: true to generate a program that takes an IOContext
+     * @param profiling: true to add statement counters
+     * @param target: the Java release the class targets, 8, 17 or 21
+     * @return the finished visitor, holding the class name and bytecode
+     */
+    public static CustomVisitor compile(CharStream input, String sourceFile, boolean ioContext, boolean profiling, int target) {
+        KnightCodeParser.FileContext tree = parse(input);
+
+        CustomVisitor visitor = new CustomVisitor();
+        visitor.setVerbose(false);
+        visitor.setIOContext(ioContext);
+        visitor.setProfiling(profiling);
+        visitor.setTarget(target);
+        visitor.setSourceFile(sourceFile);
+        visitor.setClassName("output/" + tree.ID().getText());
+        visitor.visit(tree);
+        return visitor;
+    }
+
+    /**
+     * Opens the ANTLR parse tree inspector.  Kept in its own method so the GUI classes are only loaded when it runs
+     * 
+     * @param tree: the parse tree to show
+     */
+    private static void showTree(ParseTree tree) {
+        Trees.inspect(tree, Arrays.asList(KnightCodeParser.ruleNames));
+    }
+
+    /**
+     * Reads a source file through a memory-mapped channel and decodes it once into a code point buffer.  The buffer keeps one byte per character while the source is ASCII and only widens when it meets a wider character, so a character outside the BMP is one symbol to the lexer and columns match CharStreams.fromFileName
+     * 
+     * @param inputFile: the path of the KnightCode source file
+     * @return the character stream for the lexer
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static CharStream readSource(String inputFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(mapped);
+            CodePointBuffer.Builder codePoints = CodePointBuffer.builder(chars.remaining());
+            codePoints.append(chars);
+            return CodePointCharStream.fromBuffer(codePoints.build(), inputFile);
+        }
+    }
+
+    /**
+     * Lexes and parses a KnightCode program.  The parser first tries the fast SLL prediction mode with a bail-out error strategy and only falls back to full LL prediction, with the normal error reporting, if that attempt fails
+     * 
+     * @param input: the character stream of the source
+     * @return the parse tree of the whole file
+     */
+    public static KnightCodeParser.FileContext parse(CharStream input) {
+        KnightCodeLexer lexer = new KnightCodeLexer(input);
+        return parse(new KnightCodeParser(new CommonTokenStream(lexer)));
+    }
+
+    /**
+     * Parses the tokens a parser was created with in the same two stages as parse(CharStream), for callers that lex the program themselves
+     * 
+     * @param parser: a new parser over the tokens of the program
+     * @return the parse tree of the whole file
+     */
+    public static KnightCodeParser.FileContext parse(KnightCodeParser parser) {
+        //Stage 1: SLL prediction, giving up on the first syntax error or ambiguity
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return parser.file();
+        } 
+        catch (ParseCancellationException e) {
+            //Stage 2: rewind the tokens and reparse with full LL so real errors are reported as before
+            parser.getInputStream().seek(0);
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.file();
         }
     }
     
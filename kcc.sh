@@ -0,0 +1,21 @@
+#!/bin/sh
+# Startup optimized launcher for the KnightCode compiler.
+# Runs headless with the serial GC and only the C1 JIT, which is all a
+# short-lived compile can use, and maps an AppCDS archive of the compiler,
+# ANTLR and ASM classes (kcc.jsa, see "ant cds-archive").  CDS only archives
+# classes from jars, so the compiler runs from kcc.jar ("ant jar").  ASM ships
+# as Java 5 class files, which CDS can't archive, so it still loads cold.
+# Without an archive the first run dumps one on exit.
+#
+# Usage: ./kcc.sh [options] <input file> <output class file>
+DIR=$(cd "$(dirname "$0")" && pwd)
+CP=${KC_CLASSPATH:-"$DIR/kcc.jar:/usr/local/lib/antlr-4.13.1-complete.jar:/usr/local/lib/asm-9.6.jar"}
+JSA=${KC_CDS_ARCHIVE:-"$DIR/kcc.jsa"}
+
+if [ -f "$JSA" ]; then
+    CDS="-XX:SharedArchiveFile=$JSA"
+else
+    CDS="-XX:ArchiveClassesAtExit=$JSA"
+fi
+
+exec java $CDS -XX:+UseSerialGC -XX:TieredStopAtLevel=1 -Xshare:auto -Djava.awt.headless=true -cp "$CP" compiler.kcc "$@"